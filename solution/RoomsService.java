@@ -5,29 +5,63 @@
  * Lab Number:
  * System Number:
 */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 final class Building {
   private final String name;
+  private final int ordinal; // position in declaration order, used when packing room keys
 
-  private Building(String name) {
+  private Building(String name, int ordinal) {
     this.name = name;
+    this.ordinal = ordinal;
   }
 
-  public static final Building LTC = new Building("LTC");
-  public static final Building NAB = new Building("NAB");
-  public static final Building FD1 = new Building("FD1");
-  public static final Building FD2 = new Building("FD2");
-  public static final Building FD3 = new Building("FD3");
+  public static final Building LTC = new Building("LTC", 0);
+  public static final Building NAB = new Building("NAB", 1);
+  public static final Building FD1 = new Building("FD1", 2);
+  public static final Building FD2 = new Building("FD2", 3);
+  public static final Building FD3 = new Building("FD3", 4);
+
+  private static final Building[] BY_ORDINAL = {LTC, NAB, FD1, FD2, FD3};
 
   public String getName() { return name; }
 
+  int ordinal() { return ordinal; }
+
+  // Building with the given name, e.g. "LTC", or null
+  static Building ofName(String name) {
+    for (Building b : BY_ORDINAL) {
+      if (b.name.equals(name)) return b;
+    }
+    return null;
+  }
+
+  static Building ofOrdinal(int ordinal) { return ordinal >= 0 && ordinal < BY_ORDINAL.length ? BY_ORDINAL[ordinal] : null; }
+
   public String toString() { return name; }
 }
 
@@ -52,14 +86,38 @@ final class ErrorCode {
   public String toString() { return name; }
 }
 
+/*
+ * Thread safety: bookRoom and isAvailable may be called from many threads at once.
+ * Each room's calendar is updated by compare-and-set (see HourCalendar), so two threads
+ * booking the same room and hour can never both get ErrorCode.OK, and no lock is taken.
+ * Catalog changes (addRoom, removeRoom) are not synchronized and must not run
+ * concurrently with other calls, except getRooms and snapshot, which read published
+ * immutable versions and may run alongside anything.
+ */
 public class RoomsService {
 
+  static final int HOURS = 10; // hour slots per day, numbered 1..HOURS
+
   public static class Room implements Comparable<Room> {
     private final Building building; // {LTC, NAB, FD1, FD2, FD3}
     private final String roomNumber; // e.g., 5101, 6101, 1101, 2101, 3101, etc.
     private int capacity;            // {50, 100, 150, 200, 250, 300, 350, 400}
     private boolean projectorAvailable; // true if projector is available, false otherwise
     private boolean internetAvailable; // true if internet is available, false otherwise
+    private final int key;           // packed identity from getRoomKey, -1 if the room number is not 4 digits
+    private final int hash;          // cached hashCode, derived from the identity only
+    private long filterWord;         // capacity << 32 | building bit | feature bits, see matching
+    private ChangeListener[] listeners = NO_LISTENERS; // told about every attribute change, e.g. by the services holding the room
+
+    private static final ChangeListener[] NO_LISTENERS = new ChangeListener[0];
+
+    /**
+     * Observer of changes made through the setters. Called after the change, with the values
+     * from before it, for every setter call that actually changed a value.
+     */
+    public interface ChangeListener {
+      void roomChanged(Room room, int oldCapacity, boolean oldProjectorAvailable, boolean oldInternetAvailable);
+    }
 
     public Room(Building building, String roomNumber, int capacity, boolean projectorAvailable, boolean internetAvailable) {
       this.building = building;
@@ -67,17 +125,66 @@ public class RoomsService {
       this.capacity = capacity;
       this.projectorAvailable = projectorAvailable;
       this.internetAvailable = internetAvailable;
+      this.key = getRoomKey(building, roomNumber);
+      this.hash = key >= 0 ? key : 31 * java.util.Objects.hashCode(building) + java.util.Objects.hashCode(roomNumber);
+      updateFilterWord();
     }
 
+    private void updateFilterWord() {
+      filterWord = (long) capacity << 32 | (building == null ? 0 : 4 << building.ordinal())
+        | (projectorAvailable ? 1 : 0) | (internetAvailable ? 2 : 0);
+    }
+
+    int getKey() { return key; }
+
     public Building getBuilding() { return building; }
     public String getRoomNumber() { return roomNumber; }
     public int getCapacity() { return capacity; }
     public boolean isProjectorAvailable() { return projectorAvailable; }
     public boolean isInternetAvailable() { return internetAvailable; }
 
-    public void setCapacity(int capacity) { this.capacity = capacity; }
-    public void setProjectorAvailable(boolean projectorAvailable) { this.projectorAvailable = projectorAvailable; }
-    public void setInternetAvailable(boolean internetAvailable) { this.internetAvailable = internetAvailable; }
+    public void setCapacity(int capacity) {
+      int old = this.capacity;
+      this.capacity = capacity;
+      updateFilterWord();
+      if (old != capacity) changed(old, projectorAvailable, internetAvailable);
+    }
+
+    public void setProjectorAvailable(boolean projectorAvailable) {
+      boolean old = this.projectorAvailable;
+      this.projectorAvailable = projectorAvailable;
+      updateFilterWord();
+      if (old != projectorAvailable) changed(capacity, old, internetAvailable);
+    }
+
+    public void setInternetAvailable(boolean internetAvailable) {
+      boolean old = this.internetAvailable;
+      this.internetAvailable = internetAvailable;
+      updateFilterWord();
+      if (old != internetAvailable) changed(capacity, projectorAvailable, old);
+    }
+
+    private void changed(int oldCapacity, boolean oldProjectorAvailable, boolean oldInternetAvailable) {
+      for (ChangeListener l : listeners) l.roomChanged(this, oldCapacity, oldProjectorAvailable, oldInternetAvailable);
+    }
+
+    // Not synchronized: like addRoom, must not race with other calls on the room
+    public void addChangeListener(ChangeListener listener) {
+      listeners = java.util.Arrays.copyOf(listeners, listeners.length + 1);
+      listeners[listeners.length - 1] = listener;
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+      for (int i = 0; i < listeners.length; i++) {
+        if (listeners[i] == listener) {
+          ChangeListener[] rest = new ChangeListener[listeners.length - 1];
+          System.arraycopy(listeners, 0, rest, 0, i);
+          System.arraycopy(listeners, i + 1, rest, i, rest.length - i);
+          listeners = rest;
+          return;
+        }
+      }
+    }
 
     /*
      * Student Task 1: Implement the compareTo method for comparing rooms.
@@ -117,7 +224,7 @@ public class RoomsService {
     }
 
     public int hashCode() {
-      return java.util.Objects.hash(building, roomNumber);
+      return hash;
     }
 
     public String toString() {
@@ -158,257 +265,3239 @@ public class RoomsService {
   }
 
   private final List<Room> rooms = new ArrayList<>();
-  
-  /** 
-   * Booking calendar: This is a map which contains the booking calendar for each room 
-   * i.e. for each room, it contains the hours that are booked for that room.
-   * key = room identity string (building + roomNumber), value = set of booked hours
-  */
-  private final Map<String, Set<Integer>> bookingsByRoomKey = new HashMap<>();
 
-  // Functional interface used for filtering rooms based on certain conditions
-  interface RoomPredicate {
-    boolean test(Room r);
-  }
+  /**
+   * Primary index: packed room identity (building + roomNumber) -> room.
+   * Kept in step with rooms and bookingsByRoomKey so that lookups, the duplicate
+   * check in addRoom and removeRoom do not have to walk the whole rooms list.
+   */
+  private final IntMap<Room> roomsByKey = new IntMap<>();
+
+  /*
+   * Copy-on-write view of the catalog for lock-free readers (getRooms, snapshot): the rooms
+   * list and their calendars, position by position. Replaced as a whole on every catalog change.
+   */
+  private static final class Published {
+    static final Published EMPTY = new Published(Collections.<Room>emptyList(), new HourCalendar[0]);
 
-  public List<Room> getRooms() { return rooms; }
+    final List<Room> rooms;
+    final HourCalendar[] calendars;
 
-  // This is a helper method to generate a unique key for each room
-  // i.e. building + roomNumber
-  private static String getRoomKey(Building b, String roomNumber) {
-    return b + "#" + roomNumber;
+    Published(List<Room> rooms, HourCalendar[] calendars) {
+      this.rooms = rooms;
+      this.calendars = calendars;
+    }
   }
 
+  private volatile Published published = Published.EMPTY;
+  
   /**
-   * Student Task 4: Add room to the list of rooms
-   * If the room is null, return ErrorCode.ROOM_NULL.
-   * Use isValidRoomNumberForBuilding and isValidCapacity methods (already implemented) to validate the room.
-   * If the building/roomNumber format is invalid, return ErrorCode.INVALID_ROOM_NUMBER.
-   * If the capacity is invalid (not in {50, 100, 150, 200, 250, 300, 350, 400}), return ErrorCode.INVALID_CAPACITY.
-   * If the room already exists, return ErrorCode.DUPLICATE_ROOM.
-   * If all validations pass, add the room to the list of rooms, initialize its bookingsByRoomKey entry, and return ErrorCode.OK;
-   * Expected Time for completion: 10 minutes
-   * [Total 10 marks]
-   * 3 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
-   * 1 marks for correct validation of room number [Test Case 4.1]
-   * 1 marks for correct validation of capacity [Test Case 4.2]
-   * 1.5 marks for correct handling of duplicate room [Test Case 4.3]
-   * 1 marks for correct addition of room to the list of rooms [Test Case 4.4]
-   * 1.5 marks for correct initialization of bookingsByRoomKey entry [Test Case 4.5]
-   * 1 mark for correct return of ErrorCode.OK [Test Case 4.6]
+   * Booking calendar of one room.
+   * Hour h (1..10) of day 0 is stored as bit (h - 1) of an int, so booking, checking and
+   * listing hours are single bit operations and booking an hour never allocates.
+   * On a finer or multi-day SlotGrid the bookings themselves live in a SlotSet created on the
+   * first booking, and bit (h - 1) then means "some slot of hour h on day 0 is booked".
+   * The bits keep driving the hour-based methods and indexes in both cases.
+   *
+   * The bits are updated by compare-and-set, so book is linearizable when many threads
+   * book the same room: exactly one of them wins each hour. Calendars of different rooms
+   * share nothing, so bookings of different rooms never contend. The SlotSet is guarded by
+   * the calendar's own monitor.
    */
-  public ErrorCode addRoom(Room room) {
-    if (room == null) {
-      return ErrorCode.ROOM_NULL;
+  static final class HourCalendar {
+    private static final AtomicIntegerFieldUpdater<HourCalendar> BITS =
+      AtomicIntegerFieldUpdater.newUpdater(HourCalendar.class, "bits");
+
+    private volatile int bits;
+    int slot; // position of the room in the slot arrays, maintained by RoomsService
+    private SlotSet slots; // bookings on a fine grid, null until the first one
+
+    // The room's slot bookings, created on demand; callers hold the calendar's monitor
+    SlotSet slots() {
+      if (slots == null) slots = new SlotSet();
+      return slots;
     }
-    Building b = room.getBuilding();
-    String rn = room.getRoomNumber();
-    if (!isValidRoomNumberForBuilding(b, rn)) {
-      return ErrorCode.INVALID_ROOM_NUMBER;
+
+    // Slot bookings if any were made, null otherwise; callers hold the calendar's monitor
+    SlotSet slotsIfAny() { return slots; }
+
+    private static int bit(int hour) { return 1 << (hour - 1); }
+
+    boolean isBooked(int hour) { return (bits & bit(hour)) != 0; }
+
+    // Marks the hour as booked, returns false if it was already booked
+    boolean book(int hour) {
+      return bookAll(bit(hour));
     }
-    if (!isValidCapacity(room.getCapacity())) {
-      return ErrorCode.INVALID_CAPACITY;
+
+    // Marks every hour in mask as booked in one compare-and-set, or none if any of them is booked
+    boolean bookAll(int mask) {
+      for (;;) {
+        int cur = bits;
+        if ((cur & mask) != 0) return false;
+        if (BITS.compareAndSet(this, cur, cur | mask)) return true;
+      }
     }
-    // uniqueness
-    for (Room r : rooms) {
-      if (r.getBuilding() == b && r.getRoomNumber().equals(rn)) {
-        return ErrorCode.DUPLICATE_ROOM;
+
+    // Clears every hour in mask, used to roll back hours claimed by bookAll
+    void releaseAll(int mask) {
+      for (;;) {
+        int cur = bits;
+        if (BITS.compareAndSet(this, cur, cur & ~mask)) return;
       }
     }
-    rooms.add(room);
-    // init booking map entry
-    bookingsByRoomKey.putIfAbsent(getRoomKey(b, rn), new HashSet<>());
-    return ErrorCode.OK;
-  }
 
-  /**
-   * Student Task 5: Remove room
-   * If the room is found, remove it from the list of rooms and the bookingsByRoomKey map, and return ErrorCode.OK.
-   * If the room is not found, return ErrorCode.ROOM_NOT_FOUND.
-   * Use the getRoomKey method (already implemented) to get the key for the room.
-   * Expected Time for completion: 7 minutes
-   * [Total 8 marks]
-   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
-   * 2 marks for correct removal of room from the list of rooms [Test Case 5.1]
-   * 2 marks for correct removal of bookingsByRoomKey entry [Test Case 5.2]
-   * 1 mark for correct return of ErrorCode.OK [Test Case 5.3]
-   * 1 mark for correct return of ErrorCode.ROOM_NOT_FOUND [Test Case 5.4]
-   */
-  public ErrorCode removeRoom(Building building, String roomNumber) {
-    for (int i = 0; i < rooms.size(); i++) {
-      Room r = rooms.get(i);
-      if (r.getBuilding() == building && r.getRoomNumber().equals(roomNumber)) {
-        rooms.remove(i);
-        bookingsByRoomKey.remove(getRoomKey(building, roomNumber));
-        return ErrorCode.OK;
+    // Sets every hour in mask without failing on hours already set, returns the newly set ones
+    int markAll(int mask) {
+      for (;;) {
+        int cur = bits;
+        if ((cur & mask) == mask || BITS.compareAndSet(this, cur, cur | mask)) return mask & ~cur;
       }
     }
-    return ErrorCode.ROOM_NOT_FOUND;
-  }
 
-  /**
-   * Student Task 6: Get room
-   * If the room is found (matching the given building and room number), returns the room.
-   * If the room is not found, returns null.
-   * Expected Time for completion: 5 minutes
-   * [Total 5 marks]
-   * 1.5 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
-   * 2 marks for correct return of room [Test Case 6.1]
-   * 1.5 mark for correct return of null [Test Case 6.2]
-   */
-  public Room getRoom(Building building, String roomNumber) {
-    for (Room r : rooms) {
-      if (r.getBuilding() == building && r.getRoomNumber().equals(roomNumber)) {
-        return r;
+    // Mask of hours start .. start + length - 1
+    static int rangeMask(int start, int length) {
+      return ((1 << length) - 1) << (start - 1);
+    }
+
+    // True if the hours free in window (a mask) contain a run of at least k consecutive hours
+    static boolean hasFreeRun(int bookedMask, int window, int k) {
+      int run = ~bookedMask & window;
+      // after the loop bit i survives only if hours i .. i + k - 1 are all free
+      for (int i = 1; i < k && run != 0; i++) {
+        run &= run >>> 1;
       }
+      return run != 0;
     }
-    return null;
+
+    // Raw bitmask of booked hours, bit (h - 1) set when hour h is booked
+    int bookedMask() { return bits; }
   }
 
   /**
-   * Student Task 7: Filter rooms
-   * Implement the RoomPredicate interface (strictly using a lambda expression). This predicate should check all provided conditions (capacity, building, projector, internet) for a given room and return true if all conditions are satisfied. 
-   * The predicate should return true for a room if all the below conditions are satisfied:
-   * - Capacity of the room is greater than or equal to minCapacity
-   * - Building of the room is equal to the given building
-   * - Projector is available in the room (if projectorRequired is true)
-   * - Internet is available in the room (if internetRequired is true)
-   * Rest of the implementation is already provided.
-   * Expected Time for completion: 7 minutes
-   * [Total 8 marks]
-   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
-   * 1 marks for correct filter of rooms based on capacity [Test Case 7.1]
-   * 1 marks for correct filter of rooms based on building [Test Case 7.2]
-   * 2 marks for correct filter of rooms based on projector [Test Case 7.3]
-   * 2 marks for correct filter of rooms based on internet [Test Case 7.4]
+   * Time grid of the booking calendar: a number of days, each with HOURS hours split into
+   * slotsPerHour slots. Slot s of day d has the grid-wide index d * slotsPerDay() + s.
+   * The hour-based methods (bookRoom, isAvailable, getAvailableRoomsByHour, ...) address
+   * whole hours of day 0; bookSlots and the slot overloads address any slot of any day.
+   * SINGLE_DAY, the default, is the original model of one day of ten hour slots.
    */
-  public List<Room> filterRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
-    RoomPredicate predicate = r ->
-      (minCapacity == null || r.getCapacity() >= minCapacity) &&
-      (building == null || r.getBuilding() == building) &&
-      (projectorRequired == null || !projectorRequired || r.isProjectorAvailable()) &&
-      (internetRequired == null || !internetRequired || r.isInternetAvailable());
+  public static final class SlotGrid {
+    public static final SlotGrid SINGLE_DAY = new SlotGrid(1, 1);
 
-    List<Room> out = new ArrayList<>();
-    for (Room r : rooms) {
-      if (predicate.test(r)) out.add(r);
+    private final int days;
+    private final int slotsPerHour;
+
+    public SlotGrid(int days, int slotsPerHour) {
+      if (days < 1 || slotsPerHour < 1 || (long) days * HOURS * slotsPerHour > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("invalid grid: " + days + " days, " + slotsPerHour + " slots per hour");
+      }
+      this.days = days;
+      this.slotsPerHour = slotsPerHour;
+    }
+
+    public int getDays() { return days; }
+    public int getSlotsPerHour() { return slotsPerHour; }
+    public int slotsPerDay() { return HOURS * slotsPerHour; }
+
+    // True when hour bits alone describe every booking, so no SlotSet is needed
+    boolean isHourly() { return days == 1 && slotsPerHour == 1; }
+
+    boolean isValidRange(int day, int startSlot, int count) {
+      return day >= 0 && day < days && startSlot >= 0 && count >= 1 && count <= slotsPerDay() - startSlot;
+    }
+
+    int slot(int day, int slotOfDay) { return day * slotsPerDay() + slotOfDay; }
+
+    // Mask of the hours (bit h - 1 for hour h) that slots startSlot .. startSlot + count - 1 of a day touch
+    int hoursOf(int startSlot, int count) {
+      int first = startSlot / slotsPerHour;
+      int last = (startSlot + count - 1) / slotsPerHour;
+      return HourCalendar.rangeMask(first + 1, last - first + 1);
     }
-    return out;
   }
 
   /**
-   * Student Task 8: Book room for an hour
-   * If the hour is invalid (not in {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}), return ErrorCode.INVALID_HOUR.
-   * If the room does not exist, return ErrorCode.ROOM_NOT_FOUND.
-   * If the room's capacity is less than minRequiredCapacity, return ErrorCode.INSUFFICIENT_CAPACITY.
-   * If the projector is required and not available, return ErrorCode.PROJECTOR_NOT_AVAILABLE.
-   * If the internet is required and not available, return ErrorCode.INTERNET_NOT_AVAILABLE.
-   * If the hour is already booked, return ErrorCode.ALREADY_BOOKED.
-   * Else, update the bookingsByRoomKey entry for the room and return ErrorCode.OK;
-   * Expected Time for completion: 10 minutes
-   * [Total 10 marks]
-   * 3 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
-   * 0.5 marks for correct validation of hour [Test Case 8.1]
-   * 0.5 marks for correct validation of room [Test Case 8.2]
-   * 0.5 marks for correct validation of capacity [Test Case 8.3]
-   * 0.5 marks for correct validation of projector [Test Case 8.4]
-   * 0.5 marks for correct validation of internet [Test Case 8.5]
-   * 0.5 marks for correct return of ErrorCode.ALREADY_BOOKED [Test Case 8.6]
-   * 3 mark for correct addition of hour to bookingsByRoomKey entry [Test Case 8.7]
-   * 1 mark for correct return of ErrorCode.OK [Test Case 8.8]
+   * Compressed set of grid slot indexes, in the style of a roaring bitmap.
+   * The high 16 bits of a slot select a container, the low 16 bits are stored in it as
+   * - runs (start, end) pairs, 4 bytes per run: the usual case, as bookings are ranges,
+   * - a sorted array of values, 2 bytes per value, for scattered slots,
+   * - a 65536-bit bitmap, 8 KB, once that is smaller than either.
+   * Memory is proportional to the bookings rather than to the length of the grid.
+   * Bookings add slots; removeRange is only used to roll back a failed batch.
+   * Containers switch representation when one gets too large.
    */
-  public ErrorCode bookRoom(Building building, String roomNumber, int hour, int minRequiredCapacity, boolean requireProjector, boolean requireInternet) {
-    if (hour < 1 || hour > 10) {
-      return ErrorCode.INVALID_HOUR;
-    }
-    Room room = getRoom(building, roomNumber);
-    if (room == null) {
-      return ErrorCode.ROOM_NOT_FOUND;
+  static final class SlotSet {
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+
+    boolean contains(int slot) {
+      int i = java.util.Arrays.binarySearch(keys, (char) (slot >>> 16));
+      return i >= 0 && containers[i].contains(slot & 0xFFFF);
     }
-    if (room.getCapacity() < minRequiredCapacity) {
-      return ErrorCode.INSUFFICIENT_CAPACITY;
+
+    // True if any slot in [from, to) is in the set
+    boolean intersects(int from, int to) {
+      for (int key = from >>> 16; key <= (to - 1) >>> 16; key++) {
+        int i = java.util.Arrays.binarySearch(keys, (char) key);
+        if (i < 0) continue;
+        int lo = key == from >>> 16 ? from & 0xFFFF : 0;
+        int hi = key == (to - 1) >>> 16 ? ((to - 1) & 0xFFFF) + 1 : 0x10000;
+        if (containers[i].intersects(lo, hi)) return true;
+      }
+      return false;
     }
-    if (requireProjector && !room.isProjectorAvailable()) {
-      return ErrorCode.PROJECTOR_NOT_AVAILABLE;
+
+    // Adds every slot in [from, to)
+    void addRange(int from, int to) {
+      for (int key = from >>> 16; key <= (to - 1) >>> 16; key++) {
+        int lo = key == from >>> 16 ? from & 0xFFFF : 0;
+        int hi = key == (to - 1) >>> 16 ? ((to - 1) & 0xFFFF) + 1 : 0x10000;
+        int i = java.util.Arrays.binarySearch(keys, (char) key);
+        if (i >= 0) {
+          containers[i] = containers[i].addRange(lo, hi);
+        } else {
+          i = -i - 1;
+          keys = insert(keys, i, (char) key);
+          Container[] grown = new Container[containers.length + 1];
+          System.arraycopy(containers, 0, grown, 0, i);
+          System.arraycopy(containers, i, grown, i + 1, containers.length - i);
+          grown[i] = new RunContainer().addRange(lo, hi);
+          containers = grown;
+        }
+      }
     }
-    if (requireInternet && !room.isInternetAvailable()) {
-      return ErrorCode.INTERNET_NOT_AVAILABLE;
+
+    // Removes every slot in [from, to)
+    void removeRange(int from, int to) {
+      for (int key = from >>> 16; key <= (to - 1) >>> 16; key++) {
+        int i = java.util.Arrays.binarySearch(keys, (char) key);
+        if (i < 0) continue;
+        int lo = key == from >>> 16 ? from & 0xFFFF : 0;
+        int hi = key == (to - 1) >>> 16 ? ((to - 1) & 0xFFFF) + 1 : 0x10000;
+        containers[i] = containers[i].removeRange(lo, hi);
+      }
     }
-    String k = getRoomKey(building, roomNumber);
-    Set<Integer> booked = bookingsByRoomKey.get(k);
-    if (booked == null) {
-      booked = new HashSet<>();
-      bookingsByRoomKey.put(k, booked);
+
+    private static char[] insert(char[] a, int i, char v) {
+      char[] b = new char[a.length + 1];
+      System.arraycopy(a, 0, b, 0, i);
+      b[i] = v;
+      System.arraycopy(a, i, b, i + 1, a.length - i);
+      return b;
     }
-    // Alternative solution for fetching the booked set:
-    // Set<Integer> booked = bookingsByRoomKey.computeIfAbsent(k, kk -> new HashSet<>());
-    if (booked.contains(hour)) {
-      return ErrorCode.ALREADY_BOOKED;
+
+    abstract static class Container {
+      static final int MAX_ARRAY = 4096; // above this many values a bitmap is smaller than an array
+
+      abstract boolean contains(int x);
+
+      // True if any value in [from, to) is present
+      abstract boolean intersects(int from, int to);
+
+      // Adds [from, to), returns this or a container of a better suited kind
+      abstract Container addRange(int from, int to);
+
+      // Removes [from, to), returns this or a container of a better suited kind
+      abstract Container removeRange(int from, int to);
+
+      // removeRange for the array and bitmap kinds: rebuild from a bitmap without the range
+      Container withoutRange(int from, int to) {
+        long[] words = new long[1024];
+        fill(words);
+        clearRange(words, from, to);
+        return Container.of(words);
+      }
+
+      // ORs the values into a 1024-word bitmap
+      abstract void fill(long[] words);
+
+      // Smallest container holding exactly the values of words
+      static Container of(long[] words) {
+        int cardinality = 0;
+        int runs = 0;
+        long prev = 0;
+        for (long w : words) {
+          cardinality += Long.bitCount(w);
+          runs += Long.bitCount(w & ~((w << 1) | (prev >>> 63)));
+          prev = w;
+        }
+        if (runs * 4 <= Math.min(cardinality * 2, 8192)) {
+          RunContainer c = new RunContainer();
+          int x = 0;
+          while (x < 0x10000) {
+            int start = next(words, x, true);
+            if (start < 0) break;
+            int end = next(words, start, false);
+            if (end < 0) end = 0x10000;
+            c.addRange(start, end);
+            x = end;
+          }
+          return c;
+        }
+        if (cardinality <= MAX_ARRAY) {
+          ArrayContainer c = new ArrayContainer(cardinality);
+          for (int i = 0; i < words.length; i++) {
+            for (long w = words[i]; w != 0; w &= w - 1) {
+              c.values[c.size++] = (char) ((i << 6) | Long.numberOfTrailingZeros(w));
+            }
+          }
+          return c;
+        }
+        return new BitmapContainer(words);
+      }
+
+      // Index of the first set (or clear) bit at or after x, -1 if none
+      private static int next(long[] words, int x, boolean set) {
+        int i = x >>> 6;
+        long w = (set ? words[i] : ~words[i]) & (-1L << x);
+        while (w == 0) {
+          if (++i == words.length) return -1;
+          w = set ? words[i] : ~words[i];
+        }
+        return (i << 6) | Long.numberOfTrailingZeros(w);
+      }
     }
-    booked.add(hour);
-    return ErrorCode.OK;
-  }
 
-  /**
-   * Student Task 9: Check availability
-   * If the hour is invalid (not in {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}), return ErrorCode.INVALID_HOUR.
-   * If the room does not exist in the list of rooms, return ErrorCode.ROOM_NOT_FOUND.
-   * If the hour is currently unbooked, return ErrorCode.OK.
-   * If the hour is currently booked, return ErrorCode.ALREADY_BOOKED.
-   * Expected Time for completion: 7 minutes
-   * [Total 8 marks]
-   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
-   * 1 marks for correct validation of hour [Test Case 9.1]
-   * 1 marks for correct validation of room [Test Case 9.2]
-   * 2 marks for correct return of ErrorCode.OK if the room is not booked [Test Case 9.3]
-   * 2 marks for correct return of ErrorCode.ALREADY_BOOKED if the room is booked [Test Case 9.4]
-   */
-  public ErrorCode isAvailable(Building building, String roomNumber, int hour) {
-    if (hour < 1 || hour > 10) return ErrorCode.INVALID_HOUR;
-    Room room = getRoom(building, roomNumber);
-    if (room == null) return ErrorCode.ROOM_NOT_FOUND;
-    String k = getRoomKey(building, roomNumber);
-    Set<Integer> booked = bookingsByRoomKey.get(k);
-    if (booked == null) return ErrorCode.OK; // room exists and no bookings yet
-    return booked.contains(hour) ? ErrorCode.ALREADY_BOOKED : ErrorCode.OK;
-  }
+    // Disjoint, non-adjacent runs sorted by start; run i covers starts[i] .. ends[i] inclusive
+    static final class RunContainer extends Container {
+      private char[] starts = new char[2];
+      private char[] ends = new char[2];
+      private int size;
 
-  /**
-   * Student Task 10: Available rooms by hour with optional filters
-   * If the hour is invalid (not in {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}), return an empty list.
-   * Filter rooms using the filterRooms method based on the input filters (minCapacity, building, projectorRequired, internetRequired).
-   * then for each room in the filtered list, check if it is available at the given hour using the isAvailable method.
-   * Return the list of rooms that are available at the given hour.
-   * Expected Time for completion: 7 minutes
-   * [Total 8 marks]
-   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
-   * 1 marks for correct return of empty list if the hour is invalid [Test Case 10.1]
-   * 2 marks for correct filtering of rooms based on the given filters [Test Case 10.2]
-   * 3 marks for correct return of available rooms [Test Case 10.3]
-   */
-  public List<Room> getAvailableRoomsByHour(Building building, int hour, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
-    if (hour < 1 || hour > 10) return new ArrayList<>();
-    
-    List<Room> filtered = filterRooms(minCapacity, building, projectorRequired, internetRequired);
-    List<Room> available = new ArrayList<>();
-    
-    for (Room room : filtered) {
-      if (isAvailable(room.getBuilding(), room.getRoomNumber(), hour) == ErrorCode.OK) {
-        available.add(room);
+      // Index of the last run starting at or before x, -1 if none
+      private int floor(int x) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+          int mid = (lo + hi) >>> 1;
+          if (starts[mid] <= x) lo = mid + 1; else hi = mid - 1;
+        }
+        return hi;
+      }
+
+      boolean contains(int x) {
+        int i = floor(x);
+        return i >= 0 && ends[i] >= x;
+      }
+
+      boolean intersects(int from, int to) {
+        int i = floor(to - 1);
+        return i >= 0 && ends[i] >= from;
+      }
+
+      Container addRange(int from, int to) {
+        int last = to - 1;
+        // runs first .. end - 1 overlap or touch [from, last] and are merged into one
+        int first = floor(from - 1);
+        if (first < 0 || ends[first] + 1 < from) first++;
+        int end = floor(last + 1) + 1;
+        int start = from, stop = last;
+        if (first < end) {
+          start = Math.min(start, starts[first]);
+          stop = Math.max(stop, ends[end - 1]);
+        }
+        int newSize = size - (end - first) + 1;
+        if (newSize > starts.length) {
+          starts = java.util.Arrays.copyOf(starts, Math.max(newSize, starts.length * 2));
+          ends = java.util.Arrays.copyOf(ends, starts.length);
+        }
+        System.arraycopy(starts, end, starts, first + 1, size - end);
+        System.arraycopy(ends, end, ends, first + 1, size - end);
+        starts[first] = (char) start;
+        ends[first] = (char) stop;
+        size = newSize;
+        if (size * 4 > 8192) {
+          long[] words = new long[1024];
+          fill(words);
+          return Container.of(words);
+        }
+        return this;
+      }
+
+      Container removeRange(int from, int to) {
+        int last = to - 1;
+        // runs first .. end - 1 overlap [from, last] and are replaced by what is left of them
+        int first = floor(from);
+        if (first < 0 || ends[first] < from) first++;
+        int end = floor(last) + 1;
+        if (first >= end) return this;
+        int leftStart = starts[first], rightEnd = ends[end - 1];
+        char[] pieces = new char[4];
+        int n = 0;
+        if (leftStart < from) {
+          pieces[n++] = (char) leftStart;
+          pieces[n++] = (char) (from - 1);
+        }
+        if (rightEnd > last) {
+          pieces[n++] = (char) (last + 1);
+          pieces[n++] = (char) rightEnd;
+        }
+        int newSize = size - (end - first) + n / 2;
+        if (newSize > starts.length) {
+          starts = java.util.Arrays.copyOf(starts, newSize);
+          ends = java.util.Arrays.copyOf(ends, newSize);
+        }
+        System.arraycopy(starts, end, starts, first + n / 2, size - end);
+        System.arraycopy(ends, end, ends, first + n / 2, size - end);
+        for (int i = 0; i < n / 2; i++) {
+          starts[first + i] = pieces[2 * i];
+          ends[first + i] = pieces[2 * i + 1];
+        }
+        size = newSize;
+        return this;
+      }
+
+      void fill(long[] words) {
+        for (int i = 0; i < size; i++) setRange(words, starts[i], ends[i] + 1);
       }
     }
-    
-    return available;
-  }
 
-  // ===== Helper validation functions =====
+    // Sorted distinct values
+    static final class ArrayContainer extends Container {
+      private char[] values;
+      private int size;
+
+      ArrayContainer(int capacity) { values = new char[Math.max(capacity, 4)]; }
+
+      // Index of the first value >= x
+      private int ceiling(int x) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+          int mid = (lo + hi) >>> 1;
+          if (values[mid] < x) lo = mid + 1; else hi = mid - 1;
+        }
+        return lo;
+      }
+
+      boolean contains(int x) {
+        int i = ceiling(x);
+        return i < size && values[i] == x;
+      }
+
+      boolean intersects(int from, int to) {
+        int i = ceiling(from);
+        return i < size && values[i] < to;
+      }
+
+      Container addRange(int from, int to) {
+        long[] words = new long[1024];
+        fill(words);
+        setRange(words, from, to);
+        return Container.of(words);
+      }
+
+      Container removeRange(int from, int to) { return withoutRange(from, to); }
+
+      void fill(long[] words) {
+        for (int i = 0; i < size; i++) words[values[i] >>> 6] |= 1L << values[i];
+      }
+    }
+
+    static final class BitmapContainer extends Container {
+      private final long[] words;
+
+      BitmapContainer(long[] words) { this.words = words; }
+
+      boolean contains(int x) { return (words[x >>> 6] & (1L << x)) != 0; }
+
+      boolean intersects(int from, int to) {
+        int first = from >>> 6, last = (to - 1) >>> 6;
+        for (int i = first; i <= last; i++) {
+          long w = words[i];
+          if (i == first) w &= -1L << from;
+          if (i == last) w &= -1L >>> (63 - ((to - 1) & 63));
+          if (w != 0) return true;
+        }
+        return false;
+      }
+
+      Container addRange(int from, int to) {
+        setRange(words, from, to);
+        return this;
+      }
+
+      Container removeRange(int from, int to) { return withoutRange(from, to); }
+
+      void fill(long[] target) {
+        for (int i = 0; i < words.length; i++) target[i] |= words[i];
+      }
+    }
+
+    // Clears bits [from, to) of a bitmap
+    static void clearRange(long[] words, int from, int to) {
+      int first = from >>> 6, last = (to - 1) >>> 6;
+      for (int i = first; i <= last; i++) {
+        long m = -1L;
+        if (i == first) m &= -1L << from;
+        if (i == last) m &= -1L >>> (63 - ((to - 1) & 63));
+        words[i] &= ~m;
+      }
+    }
+
+    // Sets bits [from, to) of a bitmap
+    static void setRange(long[] words, int from, int to) {
+      int first = from >>> 6, last = (to - 1) >>> 6;
+      for (int i = first; i <= last; i++) {
+        long m = -1L;
+        if (i == first) m &= -1L << from;
+        if (i == last) m &= -1L >>> (63 - ((to - 1) & 63));
+        words[i] |= m;
+      }
+    }
+  }
+
+  /** 
+   * Booking calendar: This is a map which contains the booking calendar for each room 
+   * i.e. for each room, it contains the hours that are booked for that room.
+   * key = packed room identity (see getRoomKey), value = bitmask of booked hours
+  */
+  private final IntMap<HourCalendar> bookingsByRoomKey = new IntMap<>();
+
+  /*
+   * Dense slot numbering used by the bitset indexes. Rooms get increasing slots in
+   * insertion order, removeRoom leaves a hole and compactSlots closes the holes without
+   * reordering, so ascending slot order is always the order of the rooms list.
+   */
+  private Room[] roomAt = new Room[64];
+  private HourCalendar[] calendarAt = new HourCalendar[64];
+  private int slotCount; // slots handed out so far, holes included
+
+  private final AvailabilityIndex availability = new AvailabilityIndex();
+  private final AttributeIndex attributes = new AttributeIndex();
+  private final FitIndex fit = new FitIndex();
+  private final OrderedIndex ordered = new OrderedIndex();
+
+  private final SlotGrid grid;
+
+  private volatile Journal journal; // set by recover, null for a purely in-memory service
+
+  /*
+   * Change counters for the query cache: [0] counts catalog changes (add, remove, Room setters),
+   * [h] bookings and releases of hour h. Bumped after the indexes are updated.
+   */
+  private final AtomicLongArray versions = new AtomicLongArray(HOURS + 1);
+  // bookAll batches that started and finished applying (claims and any rollback), for snapshot()
+  private final AtomicLong batchesStarted = new AtomicLong();
+  private final AtomicLong batchesFinished = new AtomicLong();
+  private volatile QueryCache queryCache; // null unless enabled by setQueryCacheSize
+
+  // Registered on every room of this service, keeps the indexes in step with the Room setters
+  private final Room.ChangeListener reindex = (room, oldCapacity, oldProjector, oldInternet) -> roomAttributesChanged(room, oldCapacity);
+
+  public RoomsService() {
+    this(SlotGrid.SINGLE_DAY);
+  }
+
+  public RoomsService(SlotGrid grid) {
+    this.grid = grid;
+  }
+
+  public SlotGrid getGrid() { return grid; }
+
+  // Functional interface used for filtering rooms based on certain conditions
+  interface RoomPredicate {
+    boolean test(Room r);
+  }
+
+  /**
+   * The rooms in insertion order, as an unmodifiable point-in-time list: addRoom and
+   * removeRoom publish a new list instead of changing one a reader may be iterating.
+   */
+  public List<Room> getRooms() { return published.rooms; }
+
+  // This is a helper method to generate a unique key for each room
+  // i.e. building + roomNumber, packed as (building ordinal << 14) | 4-digit room number.
+  // Returns -1 when there is no building or the room number is not exactly 4 digits,
+  // such a key never matches a stored room. Nothing is allocated.
+  static int getRoomKey(Building b, String roomNumber) {
+    if (b == null || roomNumber == null || roomNumber.length() != 4) return -1;
+    int number = 0;
+    for (int i = 0; i < 4; i++) {
+      int d = roomNumber.charAt(i) - '0';
+      if (d < 0 || d > 9) return -1;
+      number = number * 10 + d;
+    }
+    return (b.ordinal() << 14) | number;
+  }
+
+  /**
+   * Availability index: for each hour, a bitset over room slots whose bit is set while the
+   * room in that slot is free at that hour. Holes left by removed rooms are never set.
+   * bookRoom clears the bit by compare-and-set after the calendar update, so the bitsets
+   * can lag a concurrent booking by an instant but never report a booked hour as free
+   * for longer than that; readers re-check the calendar of every candidate.
+   */
+  static final class AvailabilityIndex {
+    private AtomicLongArray[] freeByHour = new AtomicLongArray[HOURS];
+
+    AvailabilityIndex() {
+      for (int h = 0; h < HOURS; h++) {
+        freeByHour[h] = new AtomicLongArray(1);
+      }
+    }
+
+    // Number of 64-bit words in every hour's bitset
+    int words() { return freeByHour[0].length(); }
+
+    // Bitset of free slots at the given hour (1..10)
+    AtomicLongArray freeAt(int hour) { return freeByHour[hour - 1]; }
+
+    // Grows the bitsets to cover slots [0, slots), called by the single catalog writer
+    void ensureCapacity(int slots) {
+      int need = (slots + 63) >>> 6;
+      if (need <= words()) return;
+      int words = Math.max(need, words() * 2);
+      for (int h = 0; h < HOURS; h++) {
+        AtomicLongArray old = freeByHour[h];
+        AtomicLongArray grown = new AtomicLongArray(words);
+        for (int w = 0; w < old.length(); w++) grown.set(w, old.get(w));
+        freeByHour[h] = grown;
+      }
+    }
+
+    // Marks the slot free at every hour not set in bookedMask
+    void add(int slot, int bookedMask) {
+      for (int h = 0; h < HOURS; h++) {
+        if ((bookedMask & (1 << h)) == 0) set(freeByHour[h], slot);
+      }
+    }
+
+    void remove(int slot) {
+      for (int h = 0; h < HOURS; h++) clear(freeByHour[h], slot);
+    }
+
+    void book(int slot, int hour) { clear(freeByHour[hour - 1], slot); }
+
+    void release(int slot, int hour) { set(freeByHour[hour - 1], slot); }
+
+    // Drops every bit, used before the slots are renumbered
+    void clearAll() {
+      for (int h = 0; h < HOURS; h++) {
+        AtomicLongArray bits = freeByHour[h];
+        for (int w = 0; w < bits.length(); w++) bits.set(w, 0L);
+      }
+    }
+
+    private static void set(AtomicLongArray bits, int slot) {
+      int w = slot >>> 6;
+      long m = 1L << slot;
+      for (;;) {
+        long cur = bits.get(w);
+        if ((cur & m) != 0 || bits.compareAndSet(w, cur, cur | m)) return;
+      }
+    }
+
+    private static void clear(AtomicLongArray bits, int slot) {
+      int w = slot >>> 6;
+      long m = 1L << slot;
+      for (;;) {
+        long cur = bits.get(w);
+        if ((cur & m) == 0 || bits.compareAndSet(w, cur, cur & ~m)) return;
+      }
+    }
+  }
+
+  /**
+   * Inverted attribute index over room slots, used by filterRooms and getAvailableRoomsByHour.
+   * Keeps one bitset per building, one per capacity level (capacity >= 50, >= 100, ... >= 400,
+   * so a minimum capacity is a single bitset) and one each for projector and internet.
+   * A filter is the AND of at most four bitsets, and only the set bits are visited.
+   * Capacities set outside {50, ..., 400} through setCapacity are tracked in the irregular
+   * bitset; such rooms are always candidates and are checked against the exact minimum.
+   */
+  static final class AttributeIndex {
+    static final int LEVELS = 8;       // capacity 50, 100, ..., 400
+    static final int BUILDINGS = 5;
+
+    private long[] live = new long[1];
+    private long[] irregular = new long[1];
+    private long[][] capacityAtLeast = new long[LEVELS][1];
+    private long[][] byBuilding = new long[BUILDINGS][1];
+    private long[] projector = new long[1];
+    private long[] internet = new long[1];
+    private int irregularCount;
+
+    // Capacity level needed for minCapacity: -1 for no constraint, LEVELS when only irregular rooms can match
+    static int capacityLevel(Integer minCapacity) {
+      if (minCapacity == null) return -1;
+      if (minCapacity <= 50) return 0;
+      // above the largest level only irregular rooms can match; also keeps the rounding below from overflowing
+      if (minCapacity > 50 * LEVELS) return LEVELS;
+      return (minCapacity + 49) / 50 - 1;
+    }
+
+    void ensureCapacity(int slots) {
+      int need = (slots + 63) >>> 6;
+      if (need <= live.length) return;
+      int words = Math.max(need, live.length * 2);
+      live = java.util.Arrays.copyOf(live, words);
+      irregular = java.util.Arrays.copyOf(irregular, words);
+      for (int l = 0; l < LEVELS; l++) capacityAtLeast[l] = java.util.Arrays.copyOf(capacityAtLeast[l], words);
+      for (int b = 0; b < BUILDINGS; b++) byBuilding[b] = java.util.Arrays.copyOf(byBuilding[b], words);
+      projector = java.util.Arrays.copyOf(projector, words);
+      internet = java.util.Arrays.copyOf(internet, words);
+    }
+
+    void add(int slot, Room r) {
+      int w = slot >>> 6;
+      long m = 1L << slot;
+      live[w] |= m;
+      int capacity = r.getCapacity();
+      if (capacity < 50 || capacity > 400 || capacity % 50 != 0) {
+        irregular[w] |= m;
+        irregularCount++;
+      } else {
+        for (int l = 0; l < capacity / 50; l++) capacityAtLeast[l][w] |= m;
+      }
+      byBuilding[r.getBuilding().ordinal()][w] |= m;
+      if (r.isProjectorAvailable()) projector[w] |= m;
+      if (r.isInternetAvailable()) internet[w] |= m;
+    }
+
+    void remove(int slot) {
+      int w = slot >>> 6;
+      long m = ~(1L << slot);
+      if ((irregular[w] & ~m) != 0) irregularCount--;
+      live[w] &= m;
+      irregular[w] &= m;
+      for (int l = 0; l < LEVELS; l++) capacityAtLeast[l][w] &= m;
+      for (int b = 0; b < BUILDINGS; b++) byBuilding[b][w] &= m;
+      projector[w] &= m;
+      internet[w] &= m;
+    }
+
+    void clearAll() {
+      java.util.Arrays.fill(live, 0L);
+      java.util.Arrays.fill(irregular, 0L);
+      irregularCount = 0;
+      for (long[] bits : capacityAtLeast) java.util.Arrays.fill(bits, 0L);
+      for (long[] bits : byBuilding) java.util.Arrays.fill(bits, 0L);
+      java.util.Arrays.fill(projector, 0L);
+      java.util.Arrays.fill(internet, 0L);
+    }
+
+    long irregular(int w) { return irregular[w]; }
+
+    int irregularCount() { return irregularCount; }
+
+    // Candidate slots of word w for the filter, irregular capacities still to be checked
+    long candidates(int w, int level, Building building, boolean projectorRequired, boolean internetRequired) {
+      long m = live[w];
+      if (level >= 0) m &= (level < LEVELS ? capacityAtLeast[level][w] : 0L) | irregular[w];
+      if (building != null) m &= byBuilding[building.ordinal()][w];
+      if (projectorRequired) m &= projector[w];
+      if (internetRequired) m &= internet[w];
+      return m;
+    }
+  }
+
+  /**
+   * Capacity-ordered free-room index used by allocate.
+   * Valid room numbers are a building prefix (11, 21, 31, 51, 61) followed by two digits, so
+   * every room has a rank 0..499 that follows room number order, and every building is a
+   * contiguous block of 100 ranks. For each hour and each projector/internet combination
+   * the index keeps a bitset over position = capacity level * 500 + rank, i.e. positions
+   * are in Room.compareTo order and the first set bit at or after a position is the best
+   * fit. A one-word summary marks the non-empty words, so a search touches at most two
+   * words per summary bit. Rooms with a capacity outside {50, ..., 400} are not indexed
+   * here; allocate checks them separately.
+   */
+  static final class FitIndex {
+    static final int RANKS = 500;
+    static final int POSITIONS = AttributeIndex.LEVELS * RANKS;
+    static final int FEATURES = 4; // bit 0 projector, bit 1 internet
+    private static final int WORDS = (POSITIONS + 63) >>> 6;
+    // first rank of each building, indexed by Building.ordinal(): LTC, NAB, FD1, FD2, FD3
+    private static final int[] RANK_BASE = {300, 400, 0, 100, 200};
+
+    private final AtomicLongArray[] bits = new AtomicLongArray[HOURS * FEATURES];
+    private final AtomicLongArray summary = new AtomicLongArray(HOURS * FEATURES);
+    private final int[] slotOfRank = new int[RANKS];
+    private int[] entryOf = new int[64]; // per slot: position * FEATURES + features, or -1
+
+    FitIndex() {
+      for (int i = 0; i < bits.length; i++) bits[i] = new AtomicLongArray(WORDS);
+    }
+
+    static int rankBase(Building b) { return RANK_BASE[b.ordinal()]; }
+
+    static int features(boolean projector, boolean internet) {
+      return (projector ? 1 : 0) | (internet ? 2 : 0);
+    }
+
+    // Rank of a room from its packed key, -1 for a room number outside the valid prefixes
+    static int rank(int key) {
+      if (key < 0) return -1;
+      int number = key & 0x3FFF;
+      int base;
+      switch (number / 100) {
+        case 11: base = 0; break;
+        case 21: base = 100; break;
+        case 31: base = 200; break;
+        case 51: base = 300; break;
+        case 61: base = 400; break;
+        default: return -1;
+      }
+      return base + number % 100;
+    }
+
+    int slotOfRank(int rank) { return slotOfRank[rank]; }
+
+    void ensureCapacity(int slots) {
+      if (slots > entryOf.length) {
+        entryOf = java.util.Arrays.copyOf(entryOf, Math.max(slots, entryOf.length * 2));
+      }
+    }
+
+    void add(int slot, Room r, int bookedMask) {
+      int capacity = r.getCapacity();
+      int rank = rank(r.getKey());
+      if (rank < 0 || capacity < 50 || capacity > 400 || capacity % 50 != 0) {
+        entryOf[slot] = -1;
+        return;
+      }
+      int position = (capacity / 50 - 1) * RANKS + rank;
+      int f = features(r.isProjectorAvailable(), r.isInternetAvailable());
+      entryOf[slot] = position * FEATURES + f;
+      slotOfRank[rank] = slot;
+      for (int h = 0; h < HOURS; h++) {
+        if ((bookedMask & (1 << h)) == 0) set(h * FEATURES + f, position);
+      }
+    }
+
+    void remove(int slot) {
+      int entry = entryOf[slot];
+      entryOf[slot] = -1;
+      if (entry < 0) return;
+      for (int h = 0; h < HOURS; h++) {
+        clear(h * FEATURES + entry % FEATURES, entry / FEATURES);
+      }
+    }
+
+    void book(int slot, int hour) {
+      int entry = entryOf[slot];
+      if (entry >= 0) clear((hour - 1) * FEATURES + entry % FEATURES, entry / FEATURES);
+    }
+
+    void release(int slot, int hour) {
+      int entry = entryOf[slot];
+      if (entry >= 0) set((hour - 1) * FEATURES + entry % FEATURES, entry / FEATURES);
+    }
+
+    void clearAll() {
+      for (int i = 0; i < bits.length; i++) {
+        for (int w = 0; w < WORDS; w++) bits[i].set(w, 0L);
+        summary.set(i, 0L);
+      }
+    }
+
+    // First free position in [from, to) at the hour for the feature combination, or -1
+    int first(int hour, int f, int from, int to) {
+      int i = (hour - 1) * FEATURES + f;
+      AtomicLongArray words = bits[i];
+      int w = from >>> 6;
+      long word = words.get(w) & (-1L << from);
+      // the summary may still mark a word emptied by a concurrent booking, so words are re-read
+      long pending = summary.get(i) & (-2L << w);
+      while (word == 0) {
+        if (pending == 0) return -1;
+        w = Long.numberOfTrailingZeros(pending);
+        pending &= pending - 1;
+        word = words.get(w);
+      }
+      int position = (w << 6) | Long.numberOfTrailingZeros(word);
+      return position < to ? position : -1;
+    }
+
+    private void set(int i, int position) {
+      AtomicLongArray words = bits[i];
+      int w = position >>> 6;
+      long m = 1L << position;
+      for (;;) {
+        long cur = words.get(w);
+        if (words.compareAndSet(w, cur, cur | m)) break;
+      }
+      for (;;) {
+        long cur = summary.get(i);
+        if ((cur & (1L << w)) != 0 || summary.compareAndSet(i, cur, cur | (1L << w))) return;
+      }
+    }
+
+    private void clear(int i, int position) {
+      AtomicLongArray words = bits[i];
+      int w = position >>> 6;
+      long m = 1L << position;
+      long next;
+      for (;;) {
+        long cur = words.get(w);
+        if ((cur & m) == 0) return;
+        next = cur & ~m;
+        if (words.compareAndSet(w, cur, next)) break;
+      }
+      if (next != 0) return;
+      for (;;) {
+        long cur = summary.get(i);
+        if ((cur & (1L << w)) == 0 || summary.compareAndSet(i, cur, cur & ~(1L << w))) return;
+      }
+    }
+  }
+
+  // Puts a newly added room into the next slot and the availability index
+  private void assignSlot(Room room, HourCalendar calendar) {
+    if (slotCount == roomAt.length) {
+      roomAt = java.util.Arrays.copyOf(roomAt, slotCount * 2);
+      calendarAt = java.util.Arrays.copyOf(calendarAt, slotCount * 2);
+    }
+    int slot = slotCount++;
+    roomAt[slot] = room;
+    calendarAt[slot] = calendar;
+    calendar.slot = slot;
+    availability.ensureCapacity(slotCount);
+    availability.add(slot, calendar.bookedMask());
+    attributes.ensureCapacity(slotCount);
+    attributes.add(slot, room);
+    fit.ensureCapacity(slotCount);
+    fit.add(slot, room, calendar.bookedMask());
+    ordered.add(room);
+    versions.incrementAndGet(0);
+  }
+
+  // Leaves a hole at the room's slot, compacting once holes outnumber the live rooms
+  private void releaseSlot(HourCalendar calendar) {
+    int slot = calendar.slot;
+    availability.remove(slot);
+    attributes.remove(slot);
+    fit.remove(slot);
+    ordered.remove(roomAt[slot]);
+    roomAt[slot] = null;
+    calendarAt[slot] = null;
+    versions.incrementAndGet(0);
+    if (slotCount - rooms.size() > Math.max(64, rooms.size())) {
+      compactSlots();
+    }
+  }
+
+  /*
+   * Books the day-0 hours in mask on a calendar, all or none. On a fine grid the hours are
+   * also recorded as slots, under the calendar's monitor so that bookSlots sees both together.
+   */
+  private boolean claimHours(HourCalendar calendar, int mask) {
+    if (grid.isHourly()) return calendar.bookAll(mask);
+    synchronized (calendar) {
+      if (!calendar.bookAll(mask)) return false;
+      SlotSet slots = calendar.slots();
+      for (int m = mask; m != 0; m &= m - 1) {
+        int from = grid.slot(0, Integer.numberOfTrailingZeros(m) * grid.getSlotsPerHour());
+        slots.addRange(from, from + grid.getSlotsPerHour());
+      }
+      return true;
+    }
+  }
+
+  // Undoes a successful claimHours and puts the hours back into the indexes
+  private void releaseHours(HourCalendar calendar, int mask) {
+    // the index bits go back before the calendar frees the hours, so a booking that wins one of
+    // them afterwards clears its bit again in markBooked rather than having it reset here
+    for (int m = mask; m != 0; m &= m - 1) {
+      int hour = Integer.numberOfTrailingZeros(m) + 1;
+      availability.release(calendar.slot, hour);
+      fit.release(calendar.slot, hour);
+    }
+    if (grid.isHourly()) {
+      calendar.releaseAll(mask);
+    } else {
+      synchronized (calendar) {
+        SlotSet slots = calendar.slots();
+        for (int m = mask; m != 0; m &= m - 1) {
+          int from = grid.slot(0, Integer.numberOfTrailingZeros(m) * grid.getSlotsPerHour());
+          slots.removeRange(from, from + grid.getSlotsPerHour());
+        }
+        calendar.releaseAll(mask);
+      }
+    }
+    for (int m = mask; m != 0; m &= m - 1) {
+      versions.incrementAndGet(Integer.numberOfTrailingZeros(m) + 1);
+    }
+  }
+
+  // Takes the hours in mask out of the availability and best-fit indexes
+  private void markBooked(int slot, int mask) {
+    for (int m = mask; m != 0; m &= m - 1) {
+      int hour = Integer.numberOfTrailingZeros(m) + 1;
+      availability.book(slot, hour);
+      fit.book(slot, hour);
+      versions.incrementAndGet(hour);
+    }
+  }
+
+  // Publishes the current rooms and calendars for getRooms and snapshot, O(n) per catalog change
+  private void publish() {
+    HourCalendar[] calendars = new HourCalendar[rooms.size()];
+    for (int i = 0; i < calendars.length; i++) {
+      calendars[i] = bookingsByRoomKey.get(rooms.get(i).getKey());
+    }
+    published = new Published(Collections.unmodifiableList(new ArrayList<>(rooms)), calendars);
+  }
+
+  // Change listener of the rooms of this service (see reindex), re-indexes the room under its new attributes
+  private void roomAttributesChanged(Room room, int oldCapacity) {
+    HourCalendar calendar = bookingsByRoomKey.get(room.getKey());
+    if (calendar == null || roomAt[calendar.slot] != room) return;
+    ordered.capacityChanged(room, oldCapacity);
+    attributes.remove(calendar.slot);
+    attributes.add(calendar.slot, room);
+    fit.remove(calendar.slot);
+    fit.add(calendar.slot, room, calendar.bookedMask());
+    versions.incrementAndGet(0);
+    log(Journal.UPDATE, room, room.getCapacity());
+    syncJournal();
+  }
+
+  // Renumbers the live rooms 0..n-1 in their current order and rebuilds the availability bits
+  private void compactSlots() {
+    availability.clearAll();
+    attributes.clearAll();
+    fit.clearAll();
+    int n = 0;
+    for (int slot = 0; slot < slotCount; slot++) {
+      if (roomAt[slot] == null) continue;
+      roomAt[n] = roomAt[slot];
+      calendarAt[n] = calendarAt[slot];
+      calendarAt[n].slot = n;
+      availability.add(n, calendarAt[n].bookedMask());
+      attributes.add(n, roomAt[n]);
+      fit.add(n, roomAt[n], calendarAt[n].bookedMask());
+      n++;
+    }
+    java.util.Arrays.fill(roomAt, n, slotCount, null);
+    java.util.Arrays.fill(calendarAt, n, slotCount, null);
+    slotCount = n;
+  }
+
+  /**
+   * Open-addressing hash map from non-negative int keys to values.
+   * Used for the room indexes so that lookups by packed room key neither box the key
+   * nor allocate entry objects. Linear probing, deletion by backward shift.
+   */
+  static final class IntMap<V> {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    IntMap() {
+      this(16);
+    }
+
+    IntMap(int expectedSize) {
+      int cap = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+      allocate(cap);
+    }
+
+    private void allocate(int cap) {
+      keys = new int[cap];
+      java.util.Arrays.fill(keys, EMPTY);
+      values = new Object[cap];
+      mask = cap - 1;
+    }
+
+    private int slot(int key) {
+      int h = key * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int indexOf(int key) {
+      if (key < 0) return -1;
+      for (int i = slot(key); ; i = (i + 1) & mask) {
+        int k = keys[i];
+        if (k == key) return i;
+        if (k == EMPTY) return -1;
+      }
+    }
+
+    int size() { return size; }
+
+    boolean containsKey(int key) { return indexOf(key) >= 0; }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+      int i = indexOf(key);
+      return i < 0 ? null : (V) values[i];
+    }
+
+    // Returns the previous value, or null if the key was absent
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+      if (key < 0) throw new IllegalArgumentException("negative key: " + key);
+      if ((size + 1) * 2 > keys.length) {
+        rehash(keys.length << 1);
+      }
+      int i = slot(key);
+      while (keys[i] != EMPTY) {
+        if (keys[i] == key) {
+          V old = (V) values[i];
+          values[i] = value;
+          return old;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values[i] = value;
+      size++;
+      return null;
+    }
+
+    // Returns the removed value, or null if the key was absent
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+      int i = indexOf(key);
+      if (i < 0) return null;
+      V old = (V) values[i];
+      // shift back later entries of the probe run so that lookups never stop early
+      int gap = i;
+      for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+        int home = slot(keys[j]);
+        if (((j - home) & mask) >= ((j - gap) & mask)) {
+          keys[gap] = keys[j];
+          values[gap] = values[j];
+          gap = j;
+        }
+      }
+      keys[gap] = EMPTY;
+      values[gap] = null;
+      size--;
+      return old;
+    }
+
+    private void rehash(int cap) {
+      int[] oldKeys = keys;
+      Object[] oldValues = values;
+      allocate(cap);
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] == EMPTY) continue;
+        int j = slot(oldKeys[i]);
+        while (keys[j] != EMPTY) j = (j + 1) & mask;
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * Student Task 4: Add room to the list of rooms
+   * If the room is null, return ErrorCode.ROOM_NULL.
+   * Use isValidRoomNumberForBuilding and isValidCapacity methods (already implemented) to validate the room.
+   * If the building/roomNumber format is invalid, return ErrorCode.INVALID_ROOM_NUMBER.
+   * If the capacity is invalid (not in {50, 100, 150, 200, 250, 300, 350, 400}), return ErrorCode.INVALID_CAPACITY.
+   * If the room already exists, return ErrorCode.DUPLICATE_ROOM.
+   * If all validations pass, add the room to the list of rooms, initialize its bookingsByRoomKey entry, and return ErrorCode.OK;
+   * Expected Time for completion: 10 minutes
+   * [Total 10 marks]
+   * 3 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
+   * 1 marks for correct validation of room number [Test Case 4.1]
+   * 1 marks for correct validation of capacity [Test Case 4.2]
+   * 1.5 marks for correct handling of duplicate room [Test Case 4.3]
+   * 1 marks for correct addition of room to the list of rooms [Test Case 4.4]
+   * 1.5 marks for correct initialization of bookingsByRoomKey entry [Test Case 4.5]
+   * 1 mark for correct return of ErrorCode.OK [Test Case 4.6]
+   */
+  public ErrorCode addRoom(Room room) {
+    if (room == null) {
+      return ErrorCode.ROOM_NULL;
+    }
+    Building b = room.getBuilding();
+    String rn = room.getRoomNumber();
+    // rooms are indexed by their packed key, so the number must also be all digits
+    if (!isValidRoomNumberForBuilding(b, rn) || room.getKey() < 0) {
+      return ErrorCode.INVALID_ROOM_NUMBER;
+    }
+    if (!isValidCapacity(room.getCapacity())) {
+      return ErrorCode.INVALID_CAPACITY;
+    }
+    // uniqueness
+    int k = room.getKey();
+    if (roomsByKey.containsKey(k)) {
+      return ErrorCode.DUPLICATE_ROOM;
+    }
+    rooms.add(room);
+    roomsByKey.put(k, room);
+    // init booking map entry
+    HourCalendar calendar = new HourCalendar();
+    bookingsByRoomKey.put(k, calendar);
+    assignSlot(room, calendar);
+    room.addChangeListener(reindex);
+    publish();
+    log(Journal.ADD, room, room.getCapacity());
+    syncJournal();
+    return ErrorCode.OK;
+  }
+
+  /**
+   * Student Task 5: Remove room
+   * If the room is found, remove it from the list of rooms and the bookingsByRoomKey map, and return ErrorCode.OK.
+   * If the room is not found, return ErrorCode.ROOM_NOT_FOUND.
+   * Use the getRoomKey method (already implemented) to get the key for the room.
+   * Expected Time for completion: 7 minutes
+   * [Total 8 marks]
+   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
+   * 2 marks for correct removal of room from the list of rooms [Test Case 5.1]
+   * 2 marks for correct removal of bookingsByRoomKey entry [Test Case 5.2]
+   * 1 mark for correct return of ErrorCode.OK [Test Case 5.3]
+   * 1 mark for correct return of ErrorCode.ROOM_NOT_FOUND [Test Case 5.4]
+   */
+  public ErrorCode removeRoom(Building building, String roomNumber) {
+    int k = getRoomKey(building, roomNumber);
+    Room r = roomsByKey.remove(k);
+    if (r == null) {
+      return ErrorCode.ROOM_NOT_FOUND;
+    }
+    // rooms keeps insertion order for getRooms(), so the list entry is still removed in place
+    rooms.remove(r);
+    releaseSlot(bookingsByRoomKey.remove(k));
+    r.removeChangeListener(reindex);
+    publish();
+    log(Journal.REMOVE, r, 0);
+    syncJournal();
+    return ErrorCode.OK;
+  }
+
+  /**
+   * Student Task 6: Get room
+   * If the room is found (matching the given building and room number), returns the room.
+   * If the room is not found, returns null.
+   * Expected Time for completion: 5 minutes
+   * [Total 5 marks]
+   * 1.5 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
+   * 2 marks for correct return of room [Test Case 6.1]
+   * 1.5 mark for correct return of null [Test Case 6.2]
+   */
+  public Room getRoom(Building building, String roomNumber) {
+    return roomsByKey.get(getRoomKey(building, roomNumber));
+  }
+
+  /**
+   * Student Task 7: Filter rooms
+   * Implement the RoomPredicate interface (strictly using a lambda expression). This predicate should check all provided conditions (capacity, building, projector, internet) for a given room and return true if all conditions are satisfied. 
+   * The predicate should return true for a room if all the below conditions are satisfied:
+   * - Capacity of the room is greater than or equal to minCapacity
+   * - Building of the room is equal to the given building
+   * - Projector is available in the room (if projectorRequired is true)
+   * - Internet is available in the room (if internetRequired is true)
+   * Rest of the implementation is already provided.
+   * Expected Time for completion: 7 minutes
+   * [Total 8 marks]
+   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
+   * 1 marks for correct filter of rooms based on capacity [Test Case 7.1]
+   * 1 marks for correct filter of rooms based on building [Test Case 7.2]
+   * 2 marks for correct filter of rooms based on projector [Test Case 7.3]
+   * 2 marks for correct filter of rooms based on internet [Test Case 7.4]
+   */
+  public List<Room> filterRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+    return collect(0, minCapacity, building, projectorRequired, internetRequired);
+  }
+
+  /*
+   * Shared body of filterRooms (hour 0) and getAvailableRoomsByHour: ANDs the attribute
+   * bitsets, and the free bitset of the hour if any, one word at a time and materializes
+   * only the surviving slots in slot order, i.e. in the order of the rooms list.
+   */
+  private List<Room> collect(int hour, Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+    QueryCache cache = queryCache;
+    if (cache == null) {
+      return scan(hour, minCapacity, building, projectorRequired, internetRequired);
+    }
+    long key = QueryCache.key(hour, minCapacity, building, projectorRequired, internetRequired);
+    // read the stamps before scanning, so that a change racing with the scan makes the entry stale
+    long catalog = versions.get(0);
+    long booked = hour == 0 ? 0 : versions.get(hour);
+    List<Room> hit = cache.get(key, catalog, booked);
+    if (hit != null) return hit;
+    List<Room> out = scan(hour, minCapacity, building, projectorRequired, internetRequired);
+    cache.put(key, catalog, booked, out);
+    return out;
+  }
+
+  private List<Room> scan(int hour, Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+    return scan(hour, minCapacity, building, projectorRequired, internetRequired, 0, Integer.MAX_VALUE);
+  }
+
+  // The matches of scan in slot order, skipping the first offset and stopping after limit
+  private List<Room> scan(int hour, Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired, int offset, int limit) {
+    RoomPredicate predicate = matching(minCapacity, building, projectorRequired, internetRequired);
+    int level = AttributeIndex.capacityLevel(minCapacity);
+    boolean projector = projectorRequired != null && projectorRequired;
+    boolean internet = internetRequired != null && internetRequired;
+    AtomicLongArray free = hour == 0 ? null : availability.freeAt(hour);
+
+    List<Room> out = new ArrayList<>(Math.min(limit, 16));
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words && out.size() < limit; w++) {
+      long bits = attributes.candidates(w, level, building, projector, internet);
+      if (free != null) bits &= free.get(w);
+      long irregular = attributes.irregular(w);
+      for (; bits != 0 && out.size() < limit; bits &= bits - 1) {
+        int slot = (w << 6) | Long.numberOfTrailingZeros(bits);
+        if (free != null && calendarAt[slot].isBooked(hour)) continue;
+        Room room = roomAt[slot];
+        if ((irregular & (1L << slot)) != 0 && !predicate.test(room)) continue;
+        if (offset > 0) {
+          offset--;
+          continue;
+        }
+        out.add(room);
+      }
+    }
+    return out;
+  }
+
+  /*
+   * The filterRooms predicate, applied by collect to rooms whose capacity is outside the levels
+   * and by the index walks to every room. The nullable arguments are folded once into a mask
+   * of required building and feature bits and a minimum capacity, so testing a room is one
+   * AND/compare on its filter word and one capacity compare, with no unboxing. All predicates
+   * come from this one lambda, which keeps the test() call sites monomorphic.
+   */
+  private static RoomPredicate matching(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+    long mask = (building == null ? 0 : 4 << building.ordinal())
+      | (projectorRequired != null && projectorRequired ? 1 : 0) | (internetRequired != null && internetRequired ? 2 : 0);
+    int min = minCapacity == null ? Integer.MIN_VALUE : minCapacity;
+    return r -> (r.filterWord & mask) == mask && (int) (r.filterWord >>> 32) >= min;
+  }
+
+  /**
+   * Student Task 8: Book room for an hour
+   * If the hour is invalid (not in {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}), return ErrorCode.INVALID_HOUR.
+   * If the room does not exist, return ErrorCode.ROOM_NOT_FOUND.
+   * If the room's capacity is less than minRequiredCapacity, return ErrorCode.INSUFFICIENT_CAPACITY.
+   * If the projector is required and not available, return ErrorCode.PROJECTOR_NOT_AVAILABLE.
+   * If the internet is required and not available, return ErrorCode.INTERNET_NOT_AVAILABLE.
+   * If the hour is already booked, return ErrorCode.ALREADY_BOOKED.
+   * Else, update the bookingsByRoomKey entry for the room and return ErrorCode.OK;
+   * Expected Time for completion: 10 minutes
+   * [Total 10 marks]
+   * 3 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
+   * 0.5 marks for correct validation of hour [Test Case 8.1]
+   * 0.5 marks for correct validation of room [Test Case 8.2]
+   * 0.5 marks for correct validation of capacity [Test Case 8.3]
+   * 0.5 marks for correct validation of projector [Test Case 8.4]
+   * 0.5 marks for correct validation of internet [Test Case 8.5]
+   * 0.5 marks for correct return of ErrorCode.ALREADY_BOOKED [Test Case 8.6]
+   * 3 mark for correct addition of hour to bookingsByRoomKey entry [Test Case 8.7]
+   * 1 mark for correct return of ErrorCode.OK [Test Case 8.8]
+   */
+  public ErrorCode bookRoom(Building building, String roomNumber, int hour, int minRequiredCapacity, boolean requireProjector, boolean requireInternet) {
+    if (!isValidHour(hour)) {
+      return ErrorCode.INVALID_HOUR;
+    }
+    Room room = getRoom(building, roomNumber);
+    if (room == null) {
+      return ErrorCode.ROOM_NOT_FOUND;
+    }
+    if (room.getCapacity() < minRequiredCapacity) {
+      return ErrorCode.INSUFFICIENT_CAPACITY;
+    }
+    if (requireProjector && !room.isProjectorAvailable()) {
+      return ErrorCode.PROJECTOR_NOT_AVAILABLE;
+    }
+    if (requireInternet && !room.isInternetAvailable()) {
+      return ErrorCode.INTERNET_NOT_AVAILABLE;
+    }
+    int k = room.getKey();
+    HourCalendar booked = bookingsByRoomKey.get(k);
+    if (booked == null) {
+      // addRoom always creates the calendar, so the room was removed in the meantime
+      return ErrorCode.ROOM_NOT_FOUND;
+    }
+    // the compare-and-set on the hour bits is the linearization point of a successful booking
+    if (!claimHours(booked, 1 << (hour - 1))) {
+      return ErrorCode.ALREADY_BOOKED;
+    }
+    markBooked(booked.slot, 1 << (hour - 1));
+    logBooking(booked.slot, 1 << (hour - 1));
+    syncJournal();
+    return ErrorCode.OK;
+  }
+
+  /**
+   * Student Task 9: Check availability
+   * If the hour is invalid (not in {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}), return ErrorCode.INVALID_HOUR.
+   * If the room does not exist in the list of rooms, return ErrorCode.ROOM_NOT_FOUND.
+   * If the hour is currently unbooked, return ErrorCode.OK.
+   * If the hour is currently booked, return ErrorCode.ALREADY_BOOKED.
+   * Expected Time for completion: 7 minutes
+   * [Total 8 marks]
+   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
+   * 1 marks for correct validation of hour [Test Case 9.1]
+   * 1 marks for correct validation of room [Test Case 9.2]
+   * 2 marks for correct return of ErrorCode.OK if the room is not booked [Test Case 9.3]
+   * 2 marks for correct return of ErrorCode.ALREADY_BOOKED if the room is booked [Test Case 9.4]
+   */
+  public ErrorCode isAvailable(Building building, String roomNumber, int hour) {
+    if (!isValidHour(hour)) return ErrorCode.INVALID_HOUR;
+    Room room = getRoom(building, roomNumber);
+    if (room == null) return ErrorCode.ROOM_NOT_FOUND;
+    HourCalendar booked = bookingsByRoomKey.get(room.getKey());
+    if (booked == null) return ErrorCode.OK; // room exists and no bookings yet
+    return booked.isBooked(hour) ? ErrorCode.ALREADY_BOOKED : ErrorCode.OK;
+  }
+
+  /**
+   * Student Task 10: Available rooms by hour with optional filters
+   * If the hour is invalid (not in {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}), return an empty list.
+   * Filter rooms using the filterRooms method based on the input filters (minCapacity, building, projectorRequired, internetRequired).
+   * then for each room in the filtered list, check if it is available at the given hour using the isAvailable method.
+   * Return the list of rooms that are available at the given hour.
+   * Expected Time for completion: 7 minutes
+   * [Total 8 marks]
+   * 2 marks for successful compilation of this method (awarded only if the method is correctly implemented - logically)
+   * 1 marks for correct return of empty list if the hour is invalid [Test Case 10.1]
+   * 2 marks for correct filtering of rooms based on the given filters [Test Case 10.2]
+   * 3 marks for correct return of available rooms [Test Case 10.3]
+   */
+  public List<Room> getAvailableRoomsByHour(Building building, int hour, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
+    if (!isValidHour(hour)) return new ArrayList<>();
+
+    // Same result as filterRooms followed by isAvailable on each room, computed as the
+    // intersection of the attribute bitsets with the free bitset of this hour.
+    return collect(hour, minCapacity, building, projectorRequired, internetRequired);
+  }
+
+  // ===== Multi-hour bookings =====
+
+  // The room checks of bookRoom after the hour: existence, capacity, projector, internet
+  private static ErrorCode checkRequirements(Room room, int minRequiredCapacity, boolean requireProjector, boolean requireInternet) {
+    if (room == null) {
+      return ErrorCode.ROOM_NOT_FOUND;
+    }
+    if (room.getCapacity() < minRequiredCapacity) {
+      return ErrorCode.INSUFFICIENT_CAPACITY;
+    }
+    if (requireProjector && !room.isProjectorAvailable()) {
+      return ErrorCode.PROJECTOR_NOT_AVAILABLE;
+    }
+    if (requireInternet && !room.isInternetAvailable()) {
+      return ErrorCode.INTERNET_NOT_AVAILABLE;
+    }
+    return ErrorCode.OK;
+  }
+
+  /**
+   * Books hours startHour .. startHour + length - 1 of a room, all of them or none.
+   * Validation and error codes are those of bookRoom; the range must lie within hours 1..10
+   * (ErrorCode.INVALID_HOUR otherwise) and ErrorCode.ALREADY_BOOKED is returned if any hour of
+   * the range is taken, in which case nothing is booked. The whole range is claimed by a single
+   * compare-and-set on the room's calendar.
+   */
+  public ErrorCode bookRange(Building building, String roomNumber, int startHour, int length, int minRequiredCapacity, boolean requireProjector, boolean requireInternet) {
+    if (length < 1 || !isValidHour(startHour) || !isValidHour(startHour + length - 1)) {
+      return ErrorCode.INVALID_HOUR;
+    }
+    Room room = getRoom(building, roomNumber);
+    ErrorCode unsuitable = checkRequirements(room, minRequiredCapacity, requireProjector, requireInternet);
+    if (unsuitable != ErrorCode.OK) {
+      return unsuitable;
+    }
+    HourCalendar booked = bookingsByRoomKey.get(room.getKey());
+    if (booked == null) {
+      return ErrorCode.ROOM_NOT_FOUND;
+    }
+    int mask = HourCalendar.rangeMask(startHour, length);
+    if (!claimHours(booked, mask)) {
+      return ErrorCode.ALREADY_BOOKED;
+    }
+    markBooked(booked.slot, mask);
+    logBooking(booked.slot, mask);
+    syncJournal();
+    return ErrorCode.OK;
+  }
+
+  /**
+   * Rooms that have at least k consecutive free hours within fromHour .. toHour, with the
+   * same optional filters as getAvailableRoomsByHour, in the order of getRooms().
+   * Each room is tested with shifts and masks on its calendar bits.
+   * Returns an empty list if the window is not within 1..10 or k does not fit in it.
+   */
+  public List<Room> getRoomsWithFreeHours(Building building, int fromHour, int toHour, int k, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
+    List<Room> out = new ArrayList<>();
+    if (!isValidHour(fromHour) || !isValidHour(toHour) || k < 1 || k > toHour - fromHour + 1) return out;
+    int window = HourCalendar.rangeMask(fromHour, toHour - fromHour + 1);
+
+    RoomPredicate predicate = matching(minCapacity, building, projectorRequired, internetRequired);
+    int level = AttributeIndex.capacityLevel(minCapacity);
+    boolean projector = projectorRequired != null && projectorRequired;
+    boolean internet = internetRequired != null && internetRequired;
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words; w++) {
+      long bits = attributes.candidates(w, level, building, projector, internet);
+      long irregular = attributes.irregular(w);
+      for (; bits != 0; bits &= bits - 1) {
+        int slot = (w << 6) | Long.numberOfTrailingZeros(bits);
+        if (!HourCalendar.hasFreeRun(calendarAt[slot].bookedMask(), window, k)) continue;
+        Room room = roomAt[slot];
+        if ((irregular & (1L << slot)) != 0 && !predicate.test(room)) continue;
+        out.add(room);
+      }
+    }
+    return out;
+  }
+
+  // ===== Slot bookings on the calendar grid =====
+
+  /**
+   * Books slots startSlot .. startSlot + count - 1 of the given day (0-based) on the service's
+   * SlotGrid, all of them or none. Validation and error codes are those of bookRoom, with
+   * ErrorCode.INVALID_HOUR for a day or slot range outside the grid. Booking any slot of an
+   * hour of day 0 makes that hour unavailable to the hour-based methods.
+   */
+  public ErrorCode bookSlots(Building building, String roomNumber, int day, int startSlot, int count, int minRequiredCapacity, boolean requireProjector, boolean requireInternet) {
+    if (!grid.isValidRange(day, startSlot, count)) {
+      return ErrorCode.INVALID_HOUR;
+    }
+    if (grid.isHourly()) {
+      return bookRange(building, roomNumber, startSlot + 1, count, minRequiredCapacity, requireProjector, requireInternet);
+    }
+    Room room = getRoom(building, roomNumber);
+    ErrorCode unsuitable = checkRequirements(room, minRequiredCapacity, requireProjector, requireInternet);
+    if (unsuitable != ErrorCode.OK) {
+      return unsuitable;
+    }
+    HourCalendar calendar = bookingsByRoomKey.get(room.getKey());
+    if (calendar == null) {
+      return ErrorCode.ROOM_NOT_FOUND;
+    }
+    int from = grid.slot(day, startSlot);
+    int newlyBookedHours = 0;
+    synchronized (calendar) {
+      SlotSet slots = calendar.slots();
+      if (slots.intersects(from, from + count)) {
+        return ErrorCode.ALREADY_BOOKED;
+      }
+      slots.addRange(from, from + count);
+      if (day == 0) {
+        newlyBookedHours = calendar.markAll(grid.hoursOf(startSlot, count));
+      }
+    }
+    markBooked(calendar.slot, newlyBookedHours);
+    return ErrorCode.OK;
+  }
+
+  /**
+   * Availability of slots startSlot .. startSlot + count - 1 of a day: ErrorCode.OK if all of
+   * them are free, ErrorCode.ALREADY_BOOKED if any is booked, otherwise the error codes of isAvailable.
+   */
+  public ErrorCode isAvailable(Building building, String roomNumber, int day, int startSlot, int count) {
+    if (!grid.isValidRange(day, startSlot, count)) return ErrorCode.INVALID_HOUR;
+    Room room = getRoom(building, roomNumber);
+    if (room == null) return ErrorCode.ROOM_NOT_FOUND;
+    HourCalendar calendar = bookingsByRoomKey.get(room.getKey());
+    if (calendar == null) return ErrorCode.ROOM_NOT_FOUND;
+    return isFree(calendar, day, startSlot, count) ? ErrorCode.OK : ErrorCode.ALREADY_BOOKED;
+  }
+
+  /**
+   * Rooms whose slots startSlot .. startSlot + count - 1 of the day are all free, with the
+   * optional filters of getAvailableRoomsByHour, in the order of getRooms().
+   * Returns an empty list for a day or slot range outside the grid.
+   */
+  public List<Room> getAvailableRooms(Building building, int day, int startSlot, int count, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
+    List<Room> out = new ArrayList<>();
+    if (!grid.isValidRange(day, startSlot, count)) return out;
+    RoomPredicate predicate = matching(minCapacity, building, projectorRequired, internetRequired);
+    int level = AttributeIndex.capacityLevel(minCapacity);
+    boolean projector = projectorRequired != null && projectorRequired;
+    boolean internet = internetRequired != null && internetRequired;
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words; w++) {
+      long bits = attributes.candidates(w, level, building, projector, internet);
+      long irregular = attributes.irregular(w);
+      for (; bits != 0; bits &= bits - 1) {
+        int slot = (w << 6) | Long.numberOfTrailingZeros(bits);
+        Room room = roomAt[slot];
+        if ((irregular & (1L << slot)) != 0 && !predicate.test(room)) continue;
+        if (isFree(calendarAt[slot], day, startSlot, count)) out.add(room);
+      }
+    }
+    return out;
+  }
+
+  // True if none of the slots startSlot .. startSlot + count - 1 of the day is booked on the calendar
+  private boolean isFree(HourCalendar calendar, int day, int startSlot, int count) {
+    if (grid.isHourly()) {
+      return (calendar.bookedMask() & HourCalendar.rangeMask(startSlot + 1, count)) == 0;
+    }
+    int from = grid.slot(day, startSlot);
+    synchronized (calendar) {
+      SlotSet slots = calendar.slotsIfAny();
+      return slots == null || !slots.intersects(from, from + count);
+    }
+  }
+
+  // ===== Batch bookings =====
+
+  /**
+   * One hour booking of a batch, with the arguments of bookRoom.
+   */
+  public static final class BookingRequest {
+    private final Building building;
+    private final String roomNumber;
+    private final int hour;
+    private final int minRequiredCapacity;
+    private final boolean requireProjector;
+    private final boolean requireInternet;
+
+    public BookingRequest(Building building, String roomNumber, int hour, int minRequiredCapacity, boolean requireProjector, boolean requireInternet) {
+      this.building = building;
+      this.roomNumber = roomNumber;
+      this.hour = hour;
+      this.minRequiredCapacity = minRequiredCapacity;
+      this.requireProjector = requireProjector;
+      this.requireInternet = requireInternet;
+    }
+
+    public Building getBuilding() { return building; }
+    public String getRoomNumber() { return roomNumber; }
+    public int getHour() { return hour; }
+    public int getMinRequiredCapacity() { return minRequiredCapacity; }
+    public boolean isRequireProjector() { return requireProjector; }
+    public boolean isRequireInternet() { return requireInternet; }
+  }
+
+  /**
+   * Books a whole batch of hours, all of them or none, and returns one ErrorCode per request.
+   * Every request is validated first, with the checks of bookRoom; two requests for the same
+   * room and hour make the later one ErrorCode.ALREADY_BOOKED. If every request is valid, the
+   * hours are claimed room by room, with one compare-and-set per room, and the result is all
+   * ErrorCode.OK. Otherwise nothing is booked: failing requests carry their error and the
+   * valid ones ErrorCode.NOT_BOOKED. A concurrent booking that takes one of the hours while
+   * the batch is being applied makes the batch roll back the rooms already claimed.
+   * A null request is reported as ErrorCode.ROOM_NULL.
+   */
+  public List<ErrorCode> bookAll(List<BookingRequest> requests) {
+    int n = requests.size();
+    ErrorCode[] codes = new ErrorCode[n];
+    int[] slotOf = new int[n];
+    // hours wanted per room slot, and the slots in the order the rooms first appear
+    int[] wanted = new int[slotCount];
+    int[] touched = new int[Math.min(n, slotCount)];
+    int rooms = 0;
+    boolean failed = false;
+
+    for (int i = 0; i < n; i++) {
+      BookingRequest req = requests.get(i);
+      ErrorCode code;
+      if (req == null) {
+        code = ErrorCode.ROOM_NULL;
+      } else if (!isValidHour(req.hour)) {
+        code = ErrorCode.INVALID_HOUR;
+      } else {
+        Room room = getRoom(req.building, req.roomNumber);
+        code = checkRequirements(room, req.minRequiredCapacity, req.requireProjector, req.requireInternet);
+        if (code == ErrorCode.OK) {
+          int slot = bookingsByRoomKey.get(room.getKey()).slot;
+          if (wanted[slot] == 0) touched[rooms++] = slot;
+          int bit = 1 << (req.hour - 1);
+          if (((wanted[slot] | calendarAt[slot].bookedMask()) & bit) != 0) {
+            code = ErrorCode.ALREADY_BOOKED;
+            if (wanted[slot] == 0) rooms--;
+          } else {
+            wanted[slot] |= bit;
+            slotOf[i] = slot;
+          }
+        }
+      }
+      codes[i] = code;
+      failed |= code != ErrorCode.OK;
+    }
+
+    if (!failed) {
+      // a batch in flight keeps snapshot() retrying, so a snapshot never holds part of one
+      batchesStarted.incrementAndGet();
+      try {
+        for (int r = 0; r < rooms && !failed; r++) {
+          int slot = touched[r];
+          if (claimHours(calendarAt[slot], wanted[slot])) {
+            markBooked(slot, wanted[slot]);
+            continue;
+          }
+          // taken concurrently since validation: undo the rooms claimed so far
+          failed = true;
+          int lost = wanted[slot] & calendarAt[slot].bookedMask();
+          for (int i = 0; i < n; i++) {
+            if (codes[i] == ErrorCode.OK && slotOf[i] == slot && (lost & (1 << (requests.get(i).hour - 1))) != 0) {
+              codes[i] = ErrorCode.ALREADY_BOOKED;
+            }
+          }
+          for (int undo = 0; undo < r; undo++) {
+            releaseHours(calendarAt[touched[undo]], wanted[touched[undo]]);
+          }
+        }
+      } finally {
+        batchesFinished.incrementAndGet();
+      }
+    }
+
+    if (failed) {
+      for (int i = 0; i < n; i++) {
+        if (codes[i] == ErrorCode.OK) codes[i] = ErrorCode.NOT_BOOKED;
+      }
+    } else {
+      // journaled only once every room is claimed, so a rolled back batch leaves no records
+      logBatch(touched, rooms, wanted);
+      syncJournal();
+    }
+    return java.util.Arrays.asList(codes);
+  }
+
+  // ===== Best-fit allocation =====
+
+  /**
+   * Books the smallest free room that satisfies the requirements at the given hour and returns it.
+   * "Smallest" is the natural order of rooms (capacity, then room number), so a small class
+   * never takes a large hall while a smaller adequate room is free. building may be null for
+   * any building. The check and the booking are atomic: a room returned here was booked by
+   * this call. Returns null if the hour is invalid or no room fits.
+   */
+  public Room allocate(int hour, int minCapacity, Building building, boolean requireProjector, boolean requireInternet) {
+    if (!isValidHour(hour)) return null;
+    // capacityLevel is LEVELS above 400, which leaves only the irregular rooms to search
+    int level = Math.max(0, AttributeIndex.capacityLevel(minCapacity));
+    int required = FitIndex.features(requireProjector, requireInternet);
+    int rankFrom = building == null ? 0 : FitIndex.rankBase(building);
+    int rankTo = building == null ? FitIndex.RANKS : rankFrom + 100;
+    for (;;) {
+      // best indexed candidate: lowest capacity level first, then lowest rank over the feature combinations
+      int best = -1;
+      for (int l = level; l < AttributeIndex.LEVELS && best < 0; l++) {
+        for (int f = 0; f < FitIndex.FEATURES; f++) {
+          if ((f & required) != required) continue;
+          int position = fit.first(hour, f, l * FitIndex.RANKS + rankFrom, l * FitIndex.RANKS + rankTo);
+          if (position >= 0 && (best < 0 || position < best)) best = position;
+        }
+      }
+      Room room = best < 0 ? null : roomAt[fit.slotOfRank(best % FitIndex.RANKS)];
+      if (room != null && room.getCapacity() < minCapacity) room = null;
+      Room odd = bestIrregular(hour, minCapacity, building, requireProjector, requireInternet);
+      if (odd != null && (room == null || odd.compareTo(room) < 0)) room = odd;
+      if (room == null) return null;
+
+      HourCalendar calendar = bookingsByRoomKey.get(room.getKey());
+      boolean won = claimHours(calendar, 1 << (hour - 1));
+      // on a loss to a concurrent booking this still makes sure the room is out of the index before retrying
+      markBooked(calendar.slot, 1 << (hour - 1));
+      if (won) {
+        logBooking(calendar.slot, 1 << (hour - 1));
+        syncJournal();
+        return room;
+      }
+    }
+  }
+
+  // Smallest free room at the hour among those whose capacity is outside the indexed levels
+  private Room bestIrregular(int hour, int minCapacity, Building building, boolean requireProjector, boolean requireInternet) {
+    Room best = null;
+    if (attributes.irregularCount() == 0) return null;
+    AtomicLongArray free = availability.freeAt(hour);
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words; w++) {
+      long bits = attributes.irregular(w) & attributes.candidates(w, -1, building, requireProjector, requireInternet) & free.get(w);
+      for (; bits != 0; bits &= bits - 1) {
+        int slot = (w << 6) | Long.numberOfTrailingZeros(bits);
+        Room r = roomAt[slot];
+        if (r.getCapacity() >= minCapacity && !calendarAt[slot].isBooked(hour) && (best == null || r.compareTo(best) < 0)) {
+          best = r;
+        }
+      }
+    }
+    return best;
+  }
+
+  // ===== Ordered indexes =====
+
+  /**
+   * The rooms kept sorted in both orders of Room: the natural order (capacity, then room
+   * number) and Comparators.BY_BUILDING_THEN_ROOM. Each order is a skip list over a packed
+   * key that ends in the room's identity, so rooms the comparators call equal (same capacity
+   * and number in two buildings) still get distinct entries; the building name breaks that tie.
+   * Updated on add, remove and capacity changes; reads are lock-free and may run alongside them.
+   */
+  static final class OrderedIndex {
+    // position of each building (by ordinal) in lexicographic order of the names: FD1, FD2, FD3, LTC, NAB
+    private static final int[] NAME_ORDER = {3, 4, 0, 1, 2};
+
+    final ConcurrentSkipListMap<Long, Room> natural = new ConcurrentSkipListMap<>();
+    final ConcurrentSkipListMap<Integer, Room> byBuilding = new ConcurrentSkipListMap<>();
+
+    // Room numbers in the service are 4 digits, so their numeric order is their string order
+    static long naturalKey(int capacity, Room r) {
+      return (long) capacity << 32 | (r.getKey() & 0x3FFF) << 3 | NAME_ORDER[r.getBuilding().ordinal()];
+    }
+
+    static int buildingKey(Building b, int number) {
+      return NAME_ORDER[b.ordinal()] << 14 | number;
+    }
+
+    void add(Room r) {
+      natural.put(naturalKey(r.getCapacity(), r), r);
+      byBuilding.put(buildingKey(r.getBuilding(), r.getKey() & 0x3FFF), r);
+    }
+
+    void remove(Room r) {
+      natural.remove(naturalKey(r.getCapacity(), r));
+      byBuilding.remove(buildingKey(r.getBuilding(), r.getKey() & 0x3FFF));
+    }
+
+    void capacityChanged(Room r, int oldCapacity) {
+      if (oldCapacity == r.getCapacity()) return;
+      natural.remove(naturalKey(oldCapacity, r));
+      natural.put(naturalKey(r.getCapacity(), r), r);
+    }
+  }
+
+  // All rooms in natural order (Room.compareTo), without sorting
+  public List<Room> getRoomsInNaturalOrder() {
+    return new ArrayList<>(ordered.natural.values());
+  }
+
+  // All rooms in Room.Comparators.BY_BUILDING_THEN_ROOM order, without sorting
+  public List<Room> getRoomsByBuildingThenRoom() {
+    return new ArrayList<>(ordered.byBuilding.values());
+  }
+
+  /**
+   * Rooms with minCapacity <= capacity <= maxCapacity, in natural order. O(log n + k).
+   */
+  public List<Room> getRoomsWithCapacityBetween(int minCapacity, int maxCapacity) {
+    if (minCapacity > maxCapacity) return new ArrayList<>();
+    // inclusive upper key: the largest key with capacity maxCapacity, so MAX_VALUE cannot overflow
+    return new ArrayList<>(ordered.natural.subMap((long) minCapacity << 32, true, ((long) maxCapacity << 32) | 0xFFFFFFFFL, true).values());
+  }
+
+  /**
+   * Rooms of a building with fromRoomNumber <= room number <= toRoomNumber, in room number
+   * order, e.g. (LTC, "5101", "5199"). Both bounds must be 4-digit numbers, otherwise the
+   * list is empty. O(log n + k).
+   */
+  public List<Room> getRoomsBetween(Building building, String fromRoomNumber, String toRoomNumber) {
+    int from = getRoomKey(building, fromRoomNumber);
+    int to = getRoomKey(building, toRoomNumber);
+    if (from < 0 || to < 0 || from > to) return new ArrayList<>();
+    return new ArrayList<>(ordered.byBuilding.subMap(
+      OrderedIndex.buildingKey(building, from & 0x3FFF), true, OrderedIndex.buildingKey(building, to & 0x3FFF), true).values());
+  }
+
+  // ===== Paged queries =====
+
+  /**
+   * Result orders for the paged queries: INSERTION is the order of getRooms, CAPACITY the
+   * natural order of Room and BUILDING_THEN_ROOM that of Room.Comparators.BY_BUILDING_THEN_ROOM.
+   */
+  public static final class Order {
+    private final String name;
+
+    private Order(String name) { this.name = name; }
+
+    public static final Order INSERTION = new Order("INSERTION");
+    public static final Order CAPACITY = new Order("CAPACITY");
+    public static final Order BUILDING_THEN_ROOM = new Order("BUILDING_THEN_ROOM");
+
+    public String toString() { return name; }
+  }
+
+  /**
+   * One page of filterRooms: the matches in the given order, skipping the first offset and
+   * returning at most limit. Rooms are visited in index order and the walk stops once the
+   * page is full, so no list of all matches is built. Throws IllegalArgumentException for a
+   * negative offset or limit.
+   */
+  public List<Room> filterRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired, Order order, int offset, int limit) {
+    return page(0, minCapacity, building, projectorRequired, internetRequired, order, offset, limit);
+  }
+
+  /**
+   * One page of getAvailableRoomsByHour, as for the paged filterRooms. An invalid hour gives an empty list.
+   * With Order.CAPACITY and offset 0 this is the top-k smallest free rooms.
+   */
+  public List<Room> getAvailableRoomsByHour(Building building, int hour, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired, Order order, int offset, int limit) {
+    if (!isValidHour(hour)) return new ArrayList<>();
+    return page(hour, minCapacity, building, projectorRequired, internetRequired, order, offset, limit);
+  }
+
+  private List<Room> page(int hour, Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired, Order order, int offset, int limit) {
+    if (offset < 0 || limit < 0) throw new IllegalArgumentException("offset " + offset + ", limit " + limit);
+    if (order == Order.INSERTION || order == null) {
+      return scan(hour, minCapacity, building, projectorRequired, internetRequired, offset, limit);
+    }
+    Iterable<Room> walk;
+    if (order == Order.CAPACITY) {
+      walk = minCapacity == null ? ordered.natural.values() : ordered.natural.tailMap((long) minCapacity << 32).values();
+    } else if (building == null) {
+      walk = ordered.byBuilding.values();
+    } else {
+      walk = ordered.byBuilding.subMap(OrderedIndex.buildingKey(building, 0), true, OrderedIndex.buildingKey(building, 9999), true).values();
+    }
+    RoomPredicate predicate = matching(minCapacity, building, projectorRequired, internetRequired);
+    List<Room> out = new ArrayList<>(Math.min(limit, 16));
+    for (Room r : walk) {
+      if (out.size() >= limit) break;
+      if (!predicate.test(r)) continue;
+      if (hour != 0) {
+        HourCalendar calendar = bookingsByRoomKey.get(r.getKey());
+        if (calendar == null || calendar.isBooked(hour)) continue;
+      }
+      if (offset > 0) {
+        offset--;
+        continue;
+      }
+      out.add(r);
+    }
+    return out;
+  }
+
+  // ===== Streaming queries =====
+
+  /**
+   * filterRooms as a lazy stream: rooms are found word by word of the attribute bitsets as
+   * the stream is consumed, in the order of getRooms(), and no result list is built.
+   * .parallel() splits the slot range across the common fork/join pool.
+   * Like the other queries it must not be consumed while rooms are added or removed.
+   */
+  public Stream<Room> streamRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+    return StreamSupport.stream(new RoomSpliterator(0, minCapacity, building, projectorRequired, internetRequired), false);
+  }
+
+  /**
+   * getAvailableRoomsByHour as a lazy stream, see streamRooms. Empty for an invalid hour.
+   * A room booked while the stream runs is left out if its word has not been read yet.
+   */
+  public Stream<Room> streamAvailableRooms(Building building, int hour, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
+    if (!isValidHour(hour)) return Stream.empty();
+    return StreamSupport.stream(new RoomSpliterator(hour, minCapacity, building, projectorRequired, internetRequired), false);
+  }
+
+  /*
+   * Walks the words [word, end) of the bitsets that collect ANDs together. Splitting hands
+   * the lower half, with any partly consumed word, to a new spliterator, as ORDERED requires.
+   */
+  private final class RoomSpliterator implements Spliterator<Room> {
+    private final int hour;
+    private final Integer minCapacity;
+    private final Building building;
+    private final int level;
+    private final boolean projector;
+    private final boolean internet;
+    private final RoomPredicate predicate;
+    private final AtomicLongArray free;
+    private int word;
+    private int end;
+    private long bits;      // candidates of word - 1 not handed out yet
+    private long irregular; // irregular bits of word - 1
+
+    RoomSpliterator(int hour, Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+      this(hour, minCapacity, building, projectorRequired != null && projectorRequired, internetRequired != null && internetRequired,
+        0, (slotCount + 63) >>> 6);
+    }
+
+    private RoomSpliterator(int hour, Integer minCapacity, Building building, boolean projector, boolean internet, int word, int end) {
+      this.hour = hour;
+      this.minCapacity = minCapacity;
+      this.building = building;
+      this.level = AttributeIndex.capacityLevel(minCapacity);
+      this.projector = projector;
+      this.internet = internet;
+      this.predicate = matching(minCapacity, building, projector, internet);
+      this.free = hour == 0 ? null : availability.freeAt(hour);
+      this.word = word;
+      this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Room> action) {
+      for (;;) {
+        for (; bits != 0; bits &= bits - 1) {
+          int slot = ((word - 1) << 6) | Long.numberOfTrailingZeros(bits);
+          if (free != null && calendarAt[slot].isBooked(hour)) continue;
+          Room room = roomAt[slot];
+          if ((irregular & (1L << slot)) != 0 && !predicate.test(room)) continue;
+          bits &= bits - 1;
+          action.accept(room);
+          return true;
+        }
+        if (word >= end) return false;
+        bits = attributes.candidates(word, level, building, projector, internet);
+        if (free != null) bits &= free.get(word);
+        irregular = attributes.irregular(word);
+        word++;
+      }
+    }
+
+    @Override
+    public Spliterator<Room> trySplit() {
+      int remaining = end - word;
+      if (remaining < 2) return null;
+      int mid = word + remaining / 2;
+      RoomSpliterator lower = new RoomSpliterator(hour, minCapacity, building, projector, internet, word, mid);
+      lower.bits = bits;
+      lower.irregular = irregular;
+      bits = 0;
+      word = mid;
+      return lower;
+    }
+
+    @Override
+    public long estimateSize() {
+      return (long) (end - word) * 64 + Long.bitCount(bits);
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL;
+    }
+  }
+
+  // ===== Counts =====
+
+  /**
+   * getAvailableRoomsByHour(...).size() without building the list: a popcount of the ANDed
+   * attribute and availability bitsets per 64 rooms. Only rooms whose capacity is outside the
+   * valid values are tested one by one. Returns 0 for an invalid hour.
+   */
+  public int countAvailable(Building building, int hour, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
+    if (!isValidHour(hour)) return 0;
+    RoomPredicate predicate = matching(minCapacity, building, projectorRequired, internetRequired);
+    int level = AttributeIndex.capacityLevel(minCapacity);
+    boolean projector = projectorRequired != null && projectorRequired;
+    boolean internet = internetRequired != null && internetRequired;
+    AtomicLongArray free = availability.freeAt(hour);
+    int count = 0;
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words; w++) {
+      long bits = attributes.candidates(w, level, building, projector, internet) & free.get(w);
+      long irregular = attributes.irregular(w);
+      count += Long.bitCount(bits & ~irregular);
+      for (long odd = bits & irregular; odd != 0; odd &= odd - 1) {
+        if (predicate.test(roomAt[(w << 6) | Long.numberOfTrailingZeros(odd)])) count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Booked rooms per building and hour in one pass over the bitsets: element [b][h - 1] is the
+   * number of rooms of the building with ordinal b (LTC, NAB, FD1, FD2, FD3) booked at hour h.
+   */
+  public int[][] occupancyMatrix() {
+    int[][] booked = new int[5][HOURS];
+    long[] inBuilding = new long[5];
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words; w++) {
+      for (int b = 0; b < 5; b++) {
+        inBuilding[b] = attributes.candidates(w, -1, Building.ofOrdinal(b), false, false);
+      }
+      for (int h = 1; h <= HOURS; h++) {
+        long busy = ~availability.freeAt(h).get(w);
+        for (int b = 0; b < 5; b++) {
+          booked[b][h - 1] += Long.bitCount(inBuilding[b] & busy);
+        }
+      }
+    }
+    return booked;
+  }
+
+  // ===== Free/busy export =====
+
+  /**
+   * Booked hours of every room of a building, for rendering a calendar view in one call:
+   * element i is the mask of the i-th room of filterRooms(null, building, null, null), with
+   * bit (h - 1) set when hour h is booked. A null building exports all rooms, in getRooms() order.
+   */
+  public int[] freeBusy(Building building) {
+    int n = building == null ? rooms.size() : countRooms(building);
+    int[] masks = new int[n];
+    freeBusy(building, null, masks);
+    return masks;
+  }
+
+  // Booked hours of all rooms, in getRooms() order; see freeBusy(Building)
+  public int[] freeBusy() {
+    return freeBusy(null);
+  }
+
+  /**
+   * freeBusy(Building) into caller-supplied buffers, e.g. reused between renders: masks[i] gets
+   * the mask and, if rooms is not null, rooms[i] the room. Writes as many rooms as the buffers
+   * hold and returns how many there are in total, so a return value larger than the buffers
+   * means they were too small. One pass over the slots, nothing is allocated.
+   */
+  public int freeBusy(Building building, Room[] rooms, int[] masks) {
+    int limit = rooms == null ? masks.length : Math.min(rooms.length, masks.length);
+    int n = 0;
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words; w++) {
+      for (long bits = attributes.candidates(w, -1, building, false, false); bits != 0; bits &= bits - 1, n++) {
+        if (n >= limit) continue;
+        int slot = (w << 6) | Long.numberOfTrailingZeros(bits);
+        masks[n] = calendarAt[slot].bookedMask();
+        if (rooms != null) rooms[n] = roomAt[slot];
+      }
+    }
+    return n;
+  }
+
+  private int countRooms(Building building) {
+    int n = 0;
+    int words = (slotCount + 63) >>> 6;
+    for (int w = 0; w < words; w++) {
+      n += Long.bitCount(attributes.candidates(w, -1, building, false, false));
+    }
+    return n;
+  }
+
+  // ===== Query result cache =====
+
+  /**
+   * Caches up to maxEntries results of filterRooms and getAvailableRoomsByHour, evicting the
+   * least recently used. An entry is served only while no room was added, removed or changed
+   * through a Room setter, and no booking touched its hour, since it was computed; callers
+   * get their own copy of the list. 0 turns the cache off (the default).
+   */
+  public void setQueryCacheSize(int maxEntries) {
+    queryCache = maxEntries > 0 ? new QueryCache(maxEntries) : null;
+  }
+
+  /**
+   * LRU map from a normalized query to its result and the version stamps it was computed at.
+   * Queries that differ only in ways the filter ignores (false vs null for the features)
+   * share an entry.
+   */
+  static final class QueryCache {
+    private final java.util.LinkedHashMap<Long, Cached> entries;
+
+    private static final class Cached {
+      final long catalog;
+      final long booked;
+      final Room[] rooms;
+
+      Cached(long catalog, long booked, Room[] rooms) {
+        this.catalog = catalog;
+        this.booked = booked;
+        this.rooms = rooms;
+      }
+    }
+
+    QueryCache(int maxEntries) {
+      entries = new java.util.LinkedHashMap<Long, Cached>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<Long, Cached> eldest) {
+          return size() > maxEntries;
+        }
+      };
+    }
+
+    static long key(int hour, Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+      long min = minCapacity == null ? Integer.MIN_VALUE : minCapacity;
+      int features = (projectorRequired != null && projectorRequired ? 1 : 0) | (internetRequired != null && internetRequired ? 2 : 0);
+      return min << 32 | (building == null ? 0 : building.ordinal() + 1) << 6 | features << 4 | hour;
+    }
+
+    synchronized List<Room> get(long key, long catalog, long booked) {
+      Cached e = entries.get(key);
+      if (e == null) return null;
+      if (e.catalog != catalog || e.booked != booked) {
+        if (e.catalog < catalog || e.booked < booked) entries.remove(key);
+        return null;
+      }
+      return new ArrayList<>(java.util.Arrays.asList(e.rooms));
+    }
+
+    synchronized void put(long key, long catalog, long booked, List<Room> rooms) {
+      Cached e = entries.get(key);
+      // never replace a result computed at newer stamps by an older one
+      if (e != null && (e.catalog > catalog || e.booked > booked)) return;
+      entries.put(key, new Cached(catalog, booked, rooms.toArray(new Room[0])));
+    }
+  }
+
+  // ===== Snapshots =====
+
+  private volatile Snapshot lastSnapshot; // reused by snapshot() while nothing has changed
+
+  /**
+   * Immutable point-in-time view of the rooms, their attributes and their booked hours, for
+   * readers that must not see changes half way, e.g. a report iterating many queries.
+   * Taking one never locks or blocks writers and may run concurrently with any other call.
+   * The catalog part is exact. The hours are read room by room, and a read that overlaps a
+   * bookAll batch being applied is retried, so each booking call (bookRoom, bookRange,
+   * allocate or a whole bookAll batch) is either fully in the snapshot or not in it, and a
+   * batch that rolls back never shows. Every booking that returned before snapshot() was
+   * called is included. While nothing changes, repeated calls return the same snapshot.
+   */
+  public Snapshot snapshot() {
+    for (;;) {
+      // finished before started: equal values mean no batch was in flight when started was read
+      long finished = batchesFinished.get();
+      long started = batchesStarted.get();
+      if (started != finished) {
+        Thread.yield();
+        continue;
+      }
+      long[] stamp = new long[HOURS + 1];
+      for (int i = 0; i <= HOURS; i++) stamp[i] = versions.get(i);
+      Snapshot last = lastSnapshot;
+      if (last != null && java.util.Arrays.equals(last.stamp, stamp)) return last;
+      Snapshot s = new Snapshot(published, stamp);
+      // a batch that started while the hours were read may be in them only in part
+      if (batchesStarted.get() != started) continue;
+      lastSnapshot = s;
+      return s;
+    }
+  }
+
+  /**
+   * See snapshot(). The queries answer as the service did when the snapshot was taken. The
+   * Room objects are the service's own, so their getters show later setter calls; the
+   * snapshot keeps the capacity and features they had.
+   */
+  public static final class Snapshot {
+    private final List<Room> rooms;
+    private final int[] capacities;
+    private final byte[] features; // 1 projector, 2 internet
+    private final int[] booked;    // booked hour masks
+    private final short[] positionOfRank = new short[FitIndex.RANKS];
+    private final long[] stamp;
+
+    private Snapshot(Published p, long[] stamp) {
+      this.rooms = p.rooms;
+      this.stamp = stamp;
+      int n = rooms.size();
+      capacities = new int[n];
+      features = new byte[n];
+      booked = new int[n];
+      java.util.Arrays.fill(positionOfRank, (short) -1);
+      for (int i = 0; i < n; i++) {
+        Room r = rooms.get(i);
+        capacities[i] = r.getCapacity();
+        features[i] = (byte) ((r.isProjectorAvailable() ? 1 : 0) | (r.isInternetAvailable() ? 2 : 0));
+        booked[i] = p.calendars[i].bookedMask();
+        positionOfRank[FitIndex.rank(r.getKey())] = (short) i;
+      }
+    }
+
+    public List<Room> getRooms() { return rooms; }
+
+    public Room getRoom(Building building, String roomNumber) {
+      int i = positionOf(building, roomNumber);
+      return i < 0 ? null : rooms.get(i);
+    }
+
+    // Same results as RoomsService.isAvailable at the time of the snapshot
+    public ErrorCode isAvailable(Building building, String roomNumber, int hour) {
+      if (!isValidHour(hour)) return ErrorCode.INVALID_HOUR;
+      int i = positionOf(building, roomNumber);
+      if (i < 0) return ErrorCode.ROOM_NOT_FOUND;
+      return (booked[i] & (1 << (hour - 1))) != 0 ? ErrorCode.ALREADY_BOOKED : ErrorCode.OK;
+    }
+
+    public List<Room> filterRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+      return select(0, minCapacity, building, projectorRequired, internetRequired);
+    }
+
+    public List<Room> getAvailableRoomsByHour(Building building, int hour, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
+      if (!isValidHour(hour)) return new ArrayList<>();
+      return select(1 << (hour - 1), minCapacity, building, projectorRequired, internetRequired);
+    }
+
+    private List<Room> select(int hourBit, Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+      int required = (projectorRequired != null && projectorRequired ? 1 : 0) | (internetRequired != null && internetRequired ? 2 : 0);
+      List<Room> out = new ArrayList<>();
+      for (int i = 0; i < capacities.length; i++) {
+        Room r = rooms.get(i);
+        if ((booked[i] & hourBit) == 0
+            && (minCapacity == null || capacities[i] >= minCapacity)
+            && (building == null || r.getBuilding() == building)
+            && (features[i] & required) == required) {
+          out.add(r);
+        }
+      }
+      return out;
+    }
+
+    private int positionOf(Building building, String roomNumber) {
+      int rank = FitIndex.rank(getRoomKey(building, roomNumber));
+      if (rank < 0) return -1;
+      int i = positionOfRank[rank];
+      // the rank comes from the number alone, so a number under the wrong building is checked here
+      return i >= 0 && rooms.get(i).getBuilding() == building ? i : -1;
+    }
+  }
+
+  // ===== Columnar catalog =====
+
+  /**
+   * Read-mostly room catalog stored column-wise: building ordinal, room number, capacity
+   * level (capacity / 50) and feature flags live in parallel primitive arrays, 5 bytes per
+   * room instead of a Room object with its String. Scans such as filterRooms walk the
+   * arrays sequentially and only build Room objects for the matches.
+   * Rooms handed out are views created on demand: they carry the catalog's values at the
+   * time of the call, and changing them does not change the catalog (use update for that).
+   * Removing a room moves the last room into its place, so positions are not stable.
+   */
+  public static final class ColumnarCatalog {
+    private static final byte PROJECTOR = 1;
+    private static final byte INTERNET = 2;
+
+    private byte[] buildings = new byte[16];
+    private short[] numbers = new short[16];
+    private byte[] levels = new byte[16];
+    private byte[] flags = new byte[16];
+    private int size;
+    // position of each room by FitIndex.rank, -1 if absent
+    private final int[] positionOfRank = new int[FitIndex.RANKS];
+
+    public ColumnarCatalog() {
+      java.util.Arrays.fill(positionOfRank, -1);
+    }
+
+    public int size() { return size; }
+
+    /**
+     * Adds a room with the validation and error codes of RoomsService.addRoom.
+     */
+    public ErrorCode add(Room room) {
+      if (room == null) {
+        return ErrorCode.ROOM_NULL;
+      }
+      if (!isValidRoomNumberForBuilding(room.getBuilding(), room.getRoomNumber()) || room.getKey() < 0) {
+        return ErrorCode.INVALID_ROOM_NUMBER;
+      }
+      if (!isValidCapacity(room.getCapacity())) {
+        return ErrorCode.INVALID_CAPACITY;
+      }
+      int rank = FitIndex.rank(room.getKey());
+      if (positionOfRank[rank] >= 0) {
+        return ErrorCode.DUPLICATE_ROOM;
+      }
+      if (size == buildings.length) {
+        int cap = size * 2;
+        buildings = java.util.Arrays.copyOf(buildings, cap);
+        numbers = java.util.Arrays.copyOf(numbers, cap);
+        levels = java.util.Arrays.copyOf(levels, cap);
+        flags = java.util.Arrays.copyOf(flags, cap);
+      }
+      buildings[size] = (byte) room.getBuilding().ordinal();
+      numbers[size] = (short) (room.getKey() & 0x3FFF);
+      write(size, room);
+      positionOfRank[rank] = size++;
+      return ErrorCode.OK;
+    }
+
+    /**
+     * Copies capacity and features of an existing room into the catalog.
+     * Returns ErrorCode.ROOM_NULL, ErrorCode.ROOM_NOT_FOUND, ErrorCode.INVALID_CAPACITY or ErrorCode.OK.
+     */
+    public ErrorCode update(Room room) {
+      if (room == null) return ErrorCode.ROOM_NULL;
+      int i = positionOf(room.getBuilding(), room.getRoomNumber());
+      if (i < 0) return ErrorCode.ROOM_NOT_FOUND;
+      if (!isValidCapacity(room.getCapacity())) return ErrorCode.INVALID_CAPACITY;
+      write(i, room);
+      return ErrorCode.OK;
+    }
+
+    public ErrorCode remove(Building building, String roomNumber) {
+      int i = positionOf(building, roomNumber);
+      if (i < 0) return ErrorCode.ROOM_NOT_FOUND;
+      positionOfRank[rankAt(i)] = -1;
+      int last = --size;
+      if (i != last) {
+        buildings[i] = buildings[last];
+        numbers[i] = numbers[last];
+        levels[i] = levels[last];
+        flags[i] = flags[last];
+        positionOfRank[rankAt(i)] = i;
+      }
+      return ErrorCode.OK;
+    }
+
+    // View of the room at a position, 0 <= i < size()
+    public Room get(int i) {
+      if (i < 0 || i >= size) throw new IndexOutOfBoundsException("position " + i + ", size " + size);
+      return view(i);
+    }
+
+    public Room getRoom(Building building, String roomNumber) {
+      int i = positionOf(building, roomNumber);
+      return i < 0 ? null : view(i);
+    }
+
+    /**
+     * Same filter semantics as RoomsService.filterRooms, in catalog position order.
+     * A plain row loop: the catalog holds at most 500 rows, one per valid room number.
+     */
+    public List<Room> filterRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+      // a capacity of at least minCapacity is a level of at least ceil(minCapacity / 50);
+      // level 9 matches nothing, and clamping first keeps the rounding from overflowing
+      int minLevel = minCapacity == null ? 0 : minCapacity > 400 ? 9 : Math.max(0, (minCapacity + 49) / 50);
+      int b = building == null ? -1 : building.ordinal();
+      int required = (projectorRequired != null && projectorRequired ? PROJECTOR : 0)
+        | (internetRequired != null && internetRequired ? INTERNET : 0);
+      List<Room> out = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        if (levels[i] >= minLevel && (b < 0 || buildings[i] == b) && (flags[i] & required) == required) {
+          out.add(view(i));
+        }
+      }
+      return out;
+    }
+
+    private void write(int i, Room room) {
+      levels[i] = (byte) (room.getCapacity() / 50);
+      flags[i] = (byte) ((room.isProjectorAvailable() ? PROJECTOR : 0) | (room.isInternetAvailable() ? INTERNET : 0));
+    }
+
+    private int rankAt(int i) {
+      return FitIndex.rank((buildings[i] << 14) | numbers[i]);
+    }
+
+    private int positionOf(Building building, String roomNumber) {
+      int rank = FitIndex.rank(getRoomKey(building, roomNumber));
+      if (rank < 0) return -1;
+      int i = positionOfRank[rank];
+      // the rank only encodes the room number, the building has to match as well
+      return i >= 0 && buildings[i] == building.ordinal() ? i : -1;
+    }
+
+    private Room view(int i) {
+      return new Room(Building.ofOrdinal(buildings[i]), Integer.toString(numbers[i]), levels[i] * 50,
+        (flags[i] & PROJECTOR) != 0, (flags[i] & INTERNET) != 0);
+    }
+  }
+
+  // Columnar copy of the current catalog, rooms in getRooms() order
+  public ColumnarCatalog toColumnarCatalog() {
+    ColumnarCatalog catalog = new ColumnarCatalog();
+    for (Room r : rooms) {
+      // rooms whose capacity was later set outside the valid values are skipped by add
+      catalog.add(r);
+    }
+    return catalog;
+  }
+
+  // ===== Memory-mapped catalog =====
+
+  /**
+   * Read-only room catalog served straight from a memory-mapped file.
+   * Opening maps the file and checks its header, nothing is parsed or allocated per room,
+   * so a process can serve getRoom and filterRooms right after start-up.
+   *
+   * File layout (big-endian):
+   *   header   int magic "RMS1", int version, int room count, int reserved
+   *   ranks    500 ints: record index of the room with that FitIndex rank, or -1
+   *   records  8 bytes per room: byte building ordinal, byte capacity / 50,
+   *            byte flags (1 projector, 2 internet), byte unused, short room number, short unused
+   * Rooms returned are views built from the record on each call.
+   */
+  public static final class MappedCatalog {
+    static final int MAGIC = 0x524D5331; // "RMS1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RANKS_OFFSET = HEADER_BYTES;
+    static final int RECORDS_OFFSET = RANKS_OFFSET + FitIndex.RANKS * 4;
+    static final int RECORD_BYTES = 8;
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+
+    private MappedCatalog(MappedByteBuffer buffer, int size) {
+      this.buffer = buffer;
+      this.size = size;
+    }
+
+    /**
+     * Writes rooms in the catalog file format. Rooms that addRoom would reject, and
+     * duplicates after the first, are left out. Returns the number of rooms written.
+     * The file is replaced atomically, so catalogs already open on it keep their old contents.
+     */
+    public static int write(Path file, List<Room> rooms) throws IOException {
+      int[] recordOfRank = new int[FitIndex.RANKS];
+      java.util.Arrays.fill(recordOfRank, -1);
+      ByteBuffer records = ByteBuffer.allocate(rooms.size() * RECORD_BYTES);
+      int count = 0;
+      for (Room r : rooms) {
+        if (validate(r) != ErrorCode.OK) continue;
+        int rank = FitIndex.rank(r.getKey());
+        if (recordOfRank[rank] >= 0) continue;
+        recordOfRank[rank] = count++;
+        records.put((byte) r.getBuilding().ordinal());
+        records.put((byte) (r.getCapacity() / 50));
+        records.put((byte) ((r.isProjectorAvailable() ? 1 : 0) | (r.isInternetAvailable() ? 2 : 0)));
+        records.put((byte) 0);
+        records.putShort((short) (r.getKey() & 0x3FFF));
+        records.putShort((short) 0);
+      }
+      ByteBuffer head = ByteBuffer.allocate(RECORDS_OFFSET);
+      head.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+      for (int record : recordOfRank) head.putInt(record);
+      head.flip();
+      records.flip();
+      // rewriting the file in place would tear it under readers that have it mapped
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        while (head.hasRemaining()) ch.write(head);
+        while (records.hasRemaining()) ch.write(records);
+        ch.force(true);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return count;
+    }
+
+    /**
+     * Maps a catalog file. Throws IOException if it cannot be read or is not a catalog file.
+     */
+    public static MappedCatalog open(Path file) throws IOException {
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+        long length = ch.size();
+        if (length < RECORDS_OFFSET) throw new IOException("not a room catalog: " + file);
+        // the mapping stays valid after the channel is closed
+        MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+          throw new IOException("not a room catalog (or unsupported version): " + file);
+        }
+        int size = buffer.getInt(8);
+        if (size < 0 || size > FitIndex.RANKS || RECORDS_OFFSET + (long) size * RECORD_BYTES > length) {
+          throw new IOException("truncated room catalog: " + file);
+        }
+        return new MappedCatalog(buffer, size);
+      }
+    }
+
+    public int size() { return size; }
+
+    // View of the room in record i, 0 <= i < size()
+    public Room get(int i) {
+      if (i < 0 || i >= size) throw new IndexOutOfBoundsException("record " + i + ", size " + size);
+      return view(i);
+    }
+
+    public Room getRoom(Building building, String roomNumber) {
+      int rank = FitIndex.rank(getRoomKey(building, roomNumber));
+      if (rank < 0) return null;
+      int i = buffer.getInt(RANKS_OFFSET + rank * 4);
+      if (i < 0 || i >= size || buffer.get(RECORDS_OFFSET + i * RECORD_BYTES) != building.ordinal()) return null;
+      return view(i);
+    }
+
+    /**
+     * Same filter semantics as RoomsService.filterRooms, in record order.
+     */
+    public List<Room> filterRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+      // same levels as ColumnarCatalog: 9 matches nothing and is clamped before the rounding can overflow
+      int minLevel = minCapacity == null ? 0 : minCapacity > 400 ? 9 : Math.max(0, (minCapacity + 49) / 50);
+      int b = building == null ? -1 : building.ordinal();
+      int required = (projectorRequired != null && projectorRequired ? 1 : 0)
+        | (internetRequired != null && internetRequired ? 2 : 0);
+      List<Room> out = new ArrayList<>();
+      for (int i = 0, at = RECORDS_OFFSET; i < size; i++, at += RECORD_BYTES) {
+        if (buffer.get(at + 1) >= minLevel && (b < 0 || buffer.get(at) == b) && (buffer.get(at + 2) & required) == required) {
+          out.add(view(i));
+        }
+      }
+      return out;
+    }
+
+    private Room view(int i) {
+      int at = RECORDS_OFFSET + i * RECORD_BYTES;
+      int flags = buffer.get(at + 2);
+      return new Room(Building.ofOrdinal(buffer.get(at)), Integer.toString(buffer.getShort(at + 4)), buffer.get(at + 1) * 50,
+        (flags & 1) != 0, (flags & 2) != 0);
+    }
+  }
+
+  // Writes the current catalog as a MappedCatalog file, returns the number of rooms written
+  public int writeMappedCatalog(Path file) throws IOException {
+    return MappedCatalog.write(file, rooms);
+  }
+
+  // ===== Bulk import =====
+
+  static final int BULK_CHUNK = 4096; // rows per fork/join leaf task
+
+  /**
+   * Adds many rooms at once and returns what addRoom would have returned for each, in order:
+   * the same validation, and ErrorCode.DUPLICATE_ROOM for a room already in the service or
+   * earlier in the list. Validation runs in parallel on the common fork/join pool, then the
+   * rooms are deduplicated and added in one pass with the slot arrays and indexes grown once.
+   * Like addRoom it must not run concurrently with other calls.
+   */
+  public List<ErrorCode> addRooms(List<Room> newRooms) {
+    Room[] batch = newRooms.toArray(new Room[0]);
+    ErrorCode[] codes = new ErrorCode[batch.length];
+    forEachChunk(batch.length, (from, to) -> {
+      for (int i = from; i < to; i++) codes[i] = validate(batch[i]);
+    });
+    insertValidated(batch, codes);
+    return java.util.Arrays.asList(codes);
+  }
+
+  /**
+   * Bulk addRooms from a CSV file with one room per line: building,roomNumber,capacity,projector,internet
+   * e.g. "LTC,5101,100,true,false". A first line starting with "building" is a header and skipped.
+   * Returns one code per remaining line: the addRoom result, ErrorCode.ROOM_NULL for a line
+   * without five fields, ErrorCode.INVALID_ROOM_NUMBER for an unknown building and
+   * ErrorCode.INVALID_CAPACITY for a capacity that is not a number. Lines are parsed in parallel.
+   */
+  public List<ErrorCode> importCsv(Path file) throws IOException {
+    List<String> lines = Files.readAllLines(file);
+    int header = !lines.isEmpty() && lines.get(0).regionMatches(true, 0, "building", 0, 8) ? 1 : 0;
+    int n = lines.size() - header;
+    Room[] batch = new Room[n];
+    ErrorCode[] codes = new ErrorCode[n];
+    forEachChunk(n, (from, to) -> {
+      String[] fields = new String[5];
+      for (int i = from; i < to; i++) {
+        codes[i] = parseCsvRoom(lines.get(header + i), fields, batch, i);
+      }
+    });
+    insertValidated(batch, codes);
+    return java.util.Arrays.asList(codes);
+  }
+
+  // Parses one CSV line into batch[i] and returns its validation result
+  private static ErrorCode parseCsvRoom(String line, String[] fields, Room[] batch, int i) {
+    int count = 0;
+    for (int start = 0; ; ) {
+      if (count == fields.length) return ErrorCode.ROOM_NULL; // more than five fields
+      int comma = line.indexOf(',', start);
+      fields[count++] = (comma < 0 ? line.substring(start) : line.substring(start, comma)).trim();
+      if (comma < 0) break;
+      start = comma + 1;
+    }
+    if (count != fields.length) return ErrorCode.ROOM_NULL;
+    Building building = Building.ofName(fields[0]);
+    if (building == null) return ErrorCode.INVALID_ROOM_NUMBER;
+    int capacity;
+    try {
+      capacity = Integer.parseInt(fields[2]);
+    } catch (NumberFormatException e) {
+      boolean validNumber = isValidRoomNumberForBuilding(building, fields[1]) && getRoomKey(building, fields[1]) >= 0;
+      return validNumber ? ErrorCode.INVALID_CAPACITY : ErrorCode.INVALID_ROOM_NUMBER;
+    }
+    batch[i] = new Room(building, fields[1], capacity, Boolean.parseBoolean(fields[3]), Boolean.parseBoolean(fields[4]));
+    return validate(batch[i]);
+  }
+
+  // The checks of addRoom that do not depend on the rooms already added
+  private static ErrorCode validate(Room room) {
+    if (room == null) return ErrorCode.ROOM_NULL;
+    if (!isValidRoomNumberForBuilding(room.getBuilding(), room.getRoomNumber()) || room.getKey() < 0) return ErrorCode.INVALID_ROOM_NUMBER;
+    if (!isValidCapacity(room.getCapacity())) return ErrorCode.INVALID_CAPACITY;
+    return ErrorCode.OK;
+  }
+
+  // Adds the rooms whose code is OK, in order, turning repeats and existing rooms into DUPLICATE_ROOM
+  private void insertValidated(Room[] batch, ErrorCode[] codes) {
+    boolean[] seen = new boolean[FitIndex.RANKS];
+    int accepted = 0;
+    for (int i = 0; i < batch.length; i++) {
+      if (codes[i] != ErrorCode.OK) continue;
+      int k = batch[i].getKey();
+      int rank = FitIndex.rank(k);
+      if (seen[rank] || roomsByKey.containsKey(k)) {
+        codes[i] = ErrorCode.DUPLICATE_ROOM;
+        continue;
+      }
+      seen[rank] = true;
+      accepted++;
+    }
+    if (accepted == 0) return;
+    int slots = slotCount + accepted;
+    if (slots > roomAt.length) {
+      roomAt = java.util.Arrays.copyOf(roomAt, slots);
+      calendarAt = java.util.Arrays.copyOf(calendarAt, slots);
+    }
+    availability.ensureCapacity(slots);
+    attributes.ensureCapacity(slots);
+    fit.ensureCapacity(slots);
+    for (int i = 0; i < batch.length; i++) {
+      if (codes[i] != ErrorCode.OK) continue;
+      Room room = batch[i];
+      rooms.add(room);
+      roomsByKey.put(room.getKey(), room);
+      HourCalendar calendar = new HourCalendar();
+      bookingsByRoomKey.put(room.getKey(), calendar);
+      assignSlot(room, calendar);
+      room.addChangeListener(reindex);
+      log(Journal.ADD, room, room.getCapacity());
+    }
+    publish();
+    syncJournal();
+  }
+
+  private interface RangeTask {
+    void run(int from, int to);
+  }
+
+  // Runs task over [0, n) in chunks of BULK_CHUNK rows, in parallel when there is more than one chunk
+  private static void forEachChunk(int n, RangeTask task) {
+    if (n <= BULK_CHUNK) {
+      task.run(0, n);
+    } else {
+      ForkJoinPool.commonPool().invoke(new ChunkAction(0, n, task));
+    }
+  }
+
+  private static final class ChunkAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final transient RangeTask task;
+
+    ChunkAction(int from, int to, RangeTask task) {
+      this.from = from;
+      this.to = to;
+      this.task = task;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BULK_CHUNK) {
+        task.run(from, to);
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new ChunkAction(from, mid, task), new ChunkAction(mid, to, task));
+    }
+  }
+
+  // ===== Persistence =====
+
+  /**
+   * Append-only journal of catalog and booking changes, replayed on top of a snapshot by recover.
+   *
+   * File layout (big-endian): header int magic "RMSJ", int version, long generation, then
+   * 16-byte records: byte op, byte building ordinal, short room number, int value
+   * (capacity for ADD and UPDATE, hour mask for BOOK), byte flags (1 projector, 2 internet,
+   * 4 another record of the same batch follows), three unused bytes and the CRC32 of the first
+   * 12 bytes. Replay reads the file in chunks and applies a batch once its last record is read.
+   * It stops at the first record that is incomplete or fails its CRC, which is where a crash
+   * during a write leaves the file, and cuts the file back to the end of the last whole batch.
+   *
+   * Group commit: append only copies a record into a buffer under the journal's monitor.
+   * sync makes everything appended so far durable; one caller writes and fsyncs the whole
+   * buffer while the others wait for it, so concurrent bookings share one fsync.
+   */
+  static final class Journal {
+    static final int MAGIC = 0x524D534A; // "RMSJ"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 16;
+    static final int CHECKED_BYTES = 12; // covered by the CRC in the last four bytes
+    static final int READ_BYTES = 4096 * RECORD_BYTES;
+    static final byte ADD = 1, REMOVE = 2, UPDATE = 3, BOOK = 4;
+    static final int MORE = 4; // flag: the batch continues with the next record
+
+    private final FileChannel channel;
+    private long generation;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * RECORD_BYTES); // null while a sync is writing it
+    private final CRC32 crc = new CRC32(); // guarded by this
+    private long appended; // records appended
+    private long durable;  // records known to be on disk
+    private boolean flushing;
+    private IOException failure; // once a write fails the journal stays failed
+
+    private Journal(FileChannel channel, long generation) {
+      this.channel = channel;
+      this.generation = generation;
+    }
+
+    /**
+     * Opens or creates the journal of the given snapshot generation and replays its records
+     * into target. A journal of an older generation was already folded into the snapshot and
+     * is started afresh; a torn tail is cut off.
+     */
+    static Journal open(Path file, long generation, RoomsService target) throws IOException {
+      FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        Journal journal = new Journal(ch, generation);
+        ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+        while (head.hasRemaining() && ch.read(head, head.position()) >= 0) { }
+        if (head.hasRemaining()) {
+          // new file, or a crash while reset was writing the header
+          journal.reset(generation);
+          return journal;
+        }
+        if (head.getInt(0) != MAGIC || head.getInt(4) != VERSION) {
+          throw new IOException("not a room journal: " + file);
+        }
+        long own = head.getLong(8);
+        if (own > generation) {
+          throw new IOException("journal generation " + own + " is newer than snapshot generation " + generation + ": " + file);
+        }
+        if (own < generation) {
+          journal.reset(generation);
+          return journal;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer data = ByteBuffer.allocate(READ_BYTES);
+        // records of the batch being read, applied once its last record is in
+        ByteBuffer batch = ByteBuffer.allocate(64 * RECORD_BYTES);
+        long end = HEADER_BYTES;       // end of the last intact record
+        long committed = HEADER_BYTES; // end of the last whole batch
+        long size = ch.size();
+        boolean intact = true;
+        while (intact && end < size) {
+          // READ_BYTES is a whole number of records, so only the last chunk can end mid-record
+          data.clear();
+          while (data.hasRemaining() && ch.read(data, end + data.position()) >= 0) { }
+          data.flip();
+          int at = 0;
+          for (; at + RECORD_BYTES <= data.limit(); at += RECORD_BYTES) {
+            if (checksum(crc, data, at) != data.getInt(at + CHECKED_BYTES)) {
+              intact = false;
+              break;
+            }
+            if (batch.remaining() < RECORD_BYTES) {
+              ByteBuffer larger = ByteBuffer.allocate(batch.capacity() * 2);
+              batch.flip();
+              batch = larger.put(batch);
+            }
+            batch.put(data.array(), at, RECORD_BYTES);
+            if ((data.get(at + 8) & MORE) == 0) {
+              for (int r = 0; r < batch.position(); r += RECORD_BYTES) {
+                target.replay(batch.get(r), Building.ofOrdinal(batch.get(r + 1)), Integer.toString(batch.getShort(r + 2)),
+                  batch.getInt(r + 4), batch.get(r + 8) & ~MORE);
+              }
+              batch.clear();
+              committed = end + at + RECORD_BYTES;
+            }
+          }
+          end += at;
+          if (at < data.limit() || data.limit() == 0) intact = false;
+        }
+        // a batch cut short by the crash is dropped as a whole
+        if (committed < size) ch.truncate(committed);
+        ch.position(committed);
+        return journal;
+      } catch (IOException | RuntimeException e) {
+        ch.close();
+        throw e;
+      }
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer b, int at) {
+      crc.reset();
+      for (int i = 0; i < CHECKED_BYTES; i++) crc.update(b.get(at + i));
+      return (int) crc.getValue();
+    }
+
+    long generation() { return generation; }
+
+    synchronized void append(byte op, Room room, int value) {
+      put(op, room, value, 0);
+    }
+
+    /**
+     * Appends one record per room as a single batch. A concurrent sync never splits it, and
+     * replay applies the batch only if its last record made it to disk.
+     */
+    synchronized void appendBatch(byte op, Room[] rooms, int[] values, int count) {
+      for (int i = 0; i < count; i++) put(op, rooms[i], values[i], i < count - 1 ? MORE : 0);
+    }
+
+    private void put(byte op, Room room, int value, int more) {
+      if (pending.remaining() < RECORD_BYTES) {
+        ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+        pending.flip();
+        pending = larger.put(pending);
+      }
+      int at = pending.position();
+      pending.put(op);
+      pending.put((byte) room.getBuilding().ordinal());
+      pending.putShort((short) (room.getKey() & 0x3FFF));
+      pending.putInt(value);
+      pending.put((byte) ((room.isProjectorAvailable() ? 1 : 0) | (room.isInternetAvailable() ? 2 : 0) | more));
+      pending.put((byte) 0).putShort((short) 0);
+      pending.putInt(checksum(crc, pending, at));
+      appended++;
+    }
+
+    // Returns once every record appended before the call is on disk
+    void sync() {
+      boolean interrupted = false;
+      try {
+        ByteBuffer batch;
+        long upTo;
+        synchronized (this) {
+          long target = appended;
+          while (durable < target && flushing && failure == null) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              interrupted = true;
+            }
+          }
+          if (failure != null) throw new UncheckedIOException(failure);
+          if (durable >= target) return;
+          flushing = true;
+          batch = pending;
+          pending = spare;
+          spare = null;
+          upTo = appended;
+        }
+        // an interrupt would close the channel in the middle of the write
+        interrupted |= Thread.interrupted();
+        IOException error = null;
+        try {
+          batch.flip();
+          while (batch.hasRemaining()) channel.write(batch);
+          channel.force(false);
+        } catch (IOException e) {
+          error = e;
+        }
+        synchronized (this) {
+          batch.clear();
+          spare = batch;
+          flushing = false;
+          if (error == null) durable = upTo; else failure = error;
+          notifyAll();
+        }
+        if (error != null) throw new UncheckedIOException(error);
+      } finally {
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+    }
+
+    // Empties the journal and starts the given generation
+    synchronized void reset(long generation) throws IOException {
+      if (failure != null) throw failure;
+      ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+      head.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+      channel.truncate(0);
+      channel.position(0);
+      while (head.hasRemaining()) channel.write(head);
+      channel.force(true);
+      pending.clear();
+      durable = appended;
+      this.generation = generation;
+    }
+
+    void close() throws IOException {
+      sync();
+      channel.close();
+    }
+  }
+
+  static final int SNAPSHOT_MAGIC = 0x524D5353; // "RMSS"
+  static final int SNAPSHOT_VERSION = 1;
+  static final int SNAPSHOT_HEADER_BYTES = 20;
+  static final int SNAPSHOT_RECORD_BYTES = 12;
+
+  /**
+   * Rebuilds a service from a snapshot written by checkpoint and the journal written since,
+   * and keeps journaling to the same file. Either file may be missing, e.g. on first start.
+   * Every addRoom, removeRoom, booking and Room setter change of the returned service is
+   * on disk when the call returns. Works on the default one-day hourly grid.
+   * Throws IOException if a file cannot be read or is not a snapshot / journal.
+   */
+  public static RoomsService recover(Path snapshot, Path journal) throws IOException {
+    RoomsService service = new RoomsService();
+    long generation = Files.exists(snapshot) ? service.loadSnapshot(snapshot) : 0;
+    service.journal = Journal.open(journal, generation, service);
+    return service;
+  }
+
+  /**
+   * Writes all rooms and their booked hours to snapshot, replaces the previous snapshot
+   * atomically and then empties the journal. Like addRoom it must not run concurrently with
+   * other calls. Without a journal (a service not created by recover) only the snapshot is written.
+   */
+  public void checkpoint(Path snapshot) throws IOException {
+    Journal j = journal;
+    long generation = j == null ? 0 : j.generation() + 1;
+    ByteBuffer data = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES + rooms.size() * SNAPSHOT_RECORD_BYTES);
+    data.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(generation).putInt(rooms.size());
+    for (Room r : rooms) {
+      data.put((byte) r.getBuilding().ordinal());
+      data.put((byte) ((r.isProjectorAvailable() ? 1 : 0) | (r.isInternetAvailable() ? 2 : 0)));
+      data.putShort((short) (r.getKey() & 0x3FFF));
+      data.putInt(r.getCapacity());
+      data.putInt(bookingsByRoomKey.get(r.getKey()).bookedMask());
+    }
+    data.flip();
+    Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (data.hasRemaining()) ch.write(data);
+      ch.force(true);
+    }
+    Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // a crash before the reset leaves an older-generation journal, which recover ignores
+    if (j != null) j.reset(generation);
+  }
+
+  // Flushes and closes the journal; later changes are kept in memory only
+  public void closeJournal() throws IOException {
+    Journal j = journal;
+    if (j == null) return;
+    journal = null;
+    j.close();
+  }
+
+  // Loads a snapshot into this (empty) service and returns its generation
+  private long loadSnapshot(Path snapshot) throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+    if (data.remaining() < SNAPSHOT_HEADER_BYTES || data.getInt() != SNAPSHOT_MAGIC || data.getInt() != SNAPSHOT_VERSION) {
+      throw new IOException("not a room snapshot: " + snapshot);
+    }
+    long generation = data.getLong();
+    int count = data.getInt();
+    if (count < 0 || data.remaining() != (long) count * SNAPSHOT_RECORD_BYTES) {
+      throw new IOException("truncated room snapshot: " + snapshot);
+    }
+    for (int i = 0; i < count; i++) {
+      Building b = Building.ofOrdinal(data.get());
+      int flags = data.get();
+      String number = Integer.toString(data.getShort());
+      int capacity = data.getInt();
+      int mask = data.getInt();
+      if (b == null || !isValidRoomNumberForBuilding(b, number)) throw new IOException("corrupt room snapshot: " + snapshot);
+      // addRoom would reject a capacity set later through setCapacity, so add first and then apply it
+      Room room = new Room(b, number, 50, (flags & 1) != 0, (flags & 2) != 0);
+      if (addRoom(room) != ErrorCode.OK) throw new IOException("corrupt room snapshot: " + snapshot);
+      room.setCapacity(capacity);
+      replay(Journal.BOOK, b, number, mask, flags);
+    }
+    return generation;
+  }
+
+  // Applies one journal record; records that do not apply (e.g. a duplicate add) are skipped
+  private void replay(byte op, Building building, String roomNumber, int value, int flags) {
+    if (building == null) return;
+    if (op == Journal.ADD) {
+      Room room = new Room(building, roomNumber, 50, (flags & 1) != 0, (flags & 2) != 0);
+      if (addRoom(room) == ErrorCode.OK) room.setCapacity(value);
+    } else if (op == Journal.REMOVE) {
+      removeRoom(building, roomNumber);
+    } else {
+      Room room = getRoom(building, roomNumber);
+      if (room == null) return;
+      if (op == Journal.UPDATE) {
+        room.setCapacity(value);
+        room.setProjectorAvailable((flags & 1) != 0);
+        room.setInternetAvailable((flags & 2) != 0);
+      } else if (op == Journal.BOOK) {
+        HourCalendar calendar = bookingsByRoomKey.get(room.getKey());
+        markBooked(calendar.slot, calendar.markAll(value & HourCalendar.rangeMask(1, HOURS)));
+      }
+    }
+  }
+
+  // Appends a change to the journal, if any; syncJournal makes it durable
+  private void log(byte op, Room room, int value) {
+    Journal j = journal;
+    if (j != null) j.append(op, room, value);
+  }
+
+  // Journals hours just claimed on a room; only the hourly grid is journaled
+  private void logBooking(int slot, int mask) {
+    if (grid.isHourly()) log(Journal.BOOK, roomAt[slot], mask);
+  }
+
+  // Journals the hours claimed by bookAll as one batch, so recovery sees all of them or none
+  private void logBatch(int[] slots, int count, int[] masks) {
+    Journal j = journal;
+    if (j == null || !grid.isHourly()) return;
+    Room[] batch = new Room[count];
+    int[] values = new int[count];
+    for (int i = 0; i < count; i++) {
+      batch[i] = roomAt[slots[i]];
+      values[i] = masks[slots[i]];
+    }
+    j.appendBatch(Journal.BOOK, batch, values, count);
+  }
+
+  private void syncJournal() {
+    Journal j = journal;
+    if (j != null) j.sync();
+  }
+
+  // ===== Building shards =====
+
+  /**
+   * Rooms partitioned by building: one RoomsService per Building, each with its own rooms,
+   * calendars and indexes, guarded by its own read-write lock. Catalog changes take the write
+   * lock of their building only, bookings and queries its read lock (bookings stay lock-free
+   * among themselves), so every method here is thread-safe and work in different buildings
+   * never contends. Attribute changes reindex the room, so they go through setCapacity,
+   * setProjectorAvailable and setInternetAvailable here; calling the Room setters directly
+   * must not race with calls on this class. Queries with building == null run on all shards,
+   * in parallel when the common fork/join pool has more than one thread, and list the rooms
+   * building by building (LTC, NAB, FD1, FD2, FD3), each in its insertion order.
+   */
+  public static final class Sharded {
+    private final RoomsService[] shards = new RoomsService[5];
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[5];
+
+    public Sharded() {
+      for (int b = 0; b < shards.length; b++) {
+        shards[b] = new RoomsService();
+        locks[b] = new ReentrantReadWriteLock();
+      }
+    }
+
+    private interface Query {
+      List<Room> on(RoomsService shard);
+    }
+
+    /**
+     * The service holding the rooms of a building, for the methods not routed here.
+     * Calls made on it directly follow RoomsService's threading rules, not the shard lock.
+     */
+    public RoomsService shard(Building building) {
+      return shards[building.ordinal()];
+    }
+
+    public ErrorCode addRoom(Room room) {
+      if (room == null) return ErrorCode.ROOM_NULL;
+      if (room.getBuilding() == null) return ErrorCode.INVALID_ROOM_NUMBER;
+      int b = room.getBuilding().ordinal();
+      locks[b].writeLock().lock();
+      try {
+        return shards[b].addRoom(room);
+      } finally {
+        locks[b].writeLock().unlock();
+      }
+    }
+
+    public ErrorCode removeRoom(Building building, String roomNumber) {
+      if (building == null) return ErrorCode.ROOM_NOT_FOUND;
+      int b = building.ordinal();
+      locks[b].writeLock().lock();
+      try {
+        return shards[b].removeRoom(building, roomNumber);
+      } finally {
+        locks[b].writeLock().unlock();
+      }
+    }
+
+    public Room getRoom(Building building, String roomNumber) {
+      if (building == null) return null;
+      int b = building.ordinal();
+      locks[b].readLock().lock();
+      try {
+        return shards[b].getRoom(building, roomNumber);
+      } finally {
+        locks[b].readLock().unlock();
+      }
+    }
+
+    public ErrorCode setCapacity(Building building, String roomNumber, int capacity) {
+      return update(building, roomNumber, room -> room.setCapacity(capacity));
+    }
+
+    public ErrorCode setProjectorAvailable(Building building, String roomNumber, boolean projectorAvailable) {
+      return update(building, roomNumber, room -> room.setProjectorAvailable(projectorAvailable));
+    }
+
+    public ErrorCode setInternetAvailable(Building building, String roomNumber, boolean internetAvailable) {
+      return update(building, roomNumber, room -> room.setInternetAvailable(internetAvailable));
+    }
+
+    // Applies a Room setter under the building's write lock, since the reindexing it triggers is not safe against scans
+    private ErrorCode update(Building building, String roomNumber, Consumer<Room> change) {
+      if (building == null) return ErrorCode.ROOM_NOT_FOUND;
+      int b = building.ordinal();
+      locks[b].writeLock().lock();
+      try {
+        Room room = shards[b].getRoom(building, roomNumber);
+        if (room == null) return ErrorCode.ROOM_NOT_FOUND;
+        change.accept(room);
+        return ErrorCode.OK;
+      } finally {
+        locks[b].writeLock().unlock();
+      }
+    }
+
+    public ErrorCode bookRoom(Building building, String roomNumber, int hour, int minRequiredCapacity, boolean requireProjector, boolean requireInternet) {
+      if (!isValidHour(hour)) return ErrorCode.INVALID_HOUR;
+      if (building == null) return ErrorCode.ROOM_NOT_FOUND;
+      int b = building.ordinal();
+      locks[b].readLock().lock();
+      try {
+        return shards[b].bookRoom(building, roomNumber, hour, minRequiredCapacity, requireProjector, requireInternet);
+      } finally {
+        locks[b].readLock().unlock();
+      }
+    }
+
+    public ErrorCode isAvailable(Building building, String roomNumber, int hour) {
+      if (!isValidHour(hour)) return ErrorCode.INVALID_HOUR;
+      if (building == null) return ErrorCode.ROOM_NOT_FOUND;
+      int b = building.ordinal();
+      locks[b].readLock().lock();
+      try {
+        return shards[b].isAvailable(building, roomNumber, hour);
+      } finally {
+        locks[b].readLock().unlock();
+      }
+    }
+
+    // A copy of all rooms, building by building
+    public List<Room> getRooms() {
+      return query(null, shard -> new ArrayList<>(shard.getRooms()));
+    }
+
+    public List<Room> filterRooms(Integer minCapacity, Building building, Boolean projectorRequired, Boolean internetRequired) {
+      return query(building, shard -> shard.filterRooms(minCapacity, building, projectorRequired, internetRequired));
+    }
+
+    public List<Room> getAvailableRoomsByHour(Building building, int hour, Integer minCapacity, Boolean projectorRequired, Boolean internetRequired) {
+      if (!isValidHour(hour)) return new ArrayList<>();
+      return query(building, shard -> shard.getAvailableRoomsByHour(building, hour, minCapacity, projectorRequired, internetRequired));
+    }
+
+    // Runs q on the building's shard, or on every shard and concatenates the results when building is null
+    private List<Room> query(Building building, Query q) {
+      if (building != null) return read(building.ordinal(), q);
+      List<Room> out = new ArrayList<>();
+      if (ForkJoinPool.getCommonPoolParallelism() < 2) {
+        for (int b = 0; b < shards.length; b++) out.addAll(read(b, q));
+        return out;
+      }
+      List<ForkJoinTask<List<Room>>> parts = new ArrayList<>(shards.length);
+      for (int b = 0; b < shards.length; b++) {
+        final int shard = b;
+        parts.add(ForkJoinPool.commonPool().submit(() -> read(shard, q)));
+      }
+      for (ForkJoinTask<List<Room>> part : parts) out.addAll(part.join());
+      return out;
+    }
+
+    private List<Room> read(int b, Query q) {
+      locks[b].readLock().lock();
+      try {
+        return q.on(shards[b]);
+      } finally {
+        locks[b].readLock().unlock();
+      }
+    }
+  }
+
+  // ===== Helper validation functions =====
+
+  static boolean isValidHour(int hour) {
+    return hour >= 1 && hour <= HOURS;
+  }
 
-  boolean isValidCapacity(int capacity) {
+  static boolean isValidCapacity(int capacity) {
     if (capacity < 50 || capacity > 400) return false;
     return capacity % 50 == 0;
   }
 
-  boolean isValidRoomNumberForBuilding(Building b, String roomNumber) {
+  static boolean isValidRoomNumberForBuilding(Building b, String roomNumber) {
     if (roomNumber == null || roomNumber.length() != 4) return false;
     String prefix = roomNumber.substring(0, 2);
     if (b == Building.LTC) {